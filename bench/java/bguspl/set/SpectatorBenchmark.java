@@ -0,0 +1,109 @@
+package bguspl.set;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Measures what in-process spectators cost the game: a publisher thread makes random ui updates through a
+ * SpectatorStream while reader threads poll the subscribers round robin, for 0 up to 10k subscribers. Reports the
+ * publish cost per update, the messages the subscribers read a second, and how many times they fell behind and were
+ * skipped to a keyframe (instead of slowing the publisher down).
+ *
+ * Usage: SpectatorBenchmark [updates [reader threads]].
+ */
+public class SpectatorBenchmark {
+
+    private static final int[] SUBSCRIBERS = {0, 100, 1_000, 10_000};
+
+    /**
+     * The most messages a reader takes from a subscriber before moving on to the next one.
+     */
+    private static final int POLL_MAX = 256;
+
+    private final Config config;
+
+    public SpectatorBenchmark() {
+        Properties properties = new Properties();
+        properties.setProperty("ComputerPlayers", "8");
+        properties.setProperty("LogLevel", "OFF");
+        config = new Config(Logger.getAnonymousLogger(), properties);
+    }
+
+    /**
+     * Makes a random ui update, mostly cards and tokens like a game.
+     */
+    private void update(SpectatorStream stream, ThreadLocalRandom random) {
+        int slot = random.nextInt(config.tableSize);
+        int player = random.nextInt(config.players);
+        switch (random.nextInt(8)) {
+            case 0: stream.placeCard(random.nextInt(config.deckSize), slot); break;
+            case 1: stream.removeCard(slot); break;
+            case 2: case 3: stream.placeToken(player, slot); break;
+            case 4: case 5: stream.removeToken(player, slot); break;
+            case 6: stream.setFreeze(player, random.nextInt(1000)); break;
+            default: stream.setCountdown(random.nextInt(60_000), false);
+        }
+    }
+
+    /**
+     * Runs the publisher and the readers.
+     *
+     * @return - the publish nanoseconds per update, the messages read a second, and the skips.
+     */
+    private double[] run(int subscribers, int updates, int readers) throws InterruptedException {
+        SpectatorStream stream = new SpectatorStream(config, null);
+        SpectatorStream.Subscriber[] subscriptions = new SpectatorStream.Subscriber[subscribers];
+        for (int i = 0; i < subscribers; i++)
+            subscriptions[i] = stream.subscribe();
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong read = new AtomicLong();
+        Thread[] threads = new Thread[subscribers == 0 ? 0 : readers];
+        for (int r = 0; r < threads.length; r++) {
+            int first = r;
+            threads[r] = new Thread(() -> {
+                long messages = 0;
+                SpectatorStream.Visitor visitor = message -> true;
+                while (!done.get())
+                    for (int i = first; i < subscribers; i += threads.length)
+                        messages += subscriptions[i].poll(visitor, POLL_MAX);
+                read.addAndGet(messages);
+            }, "reader" + r);
+            threads[r].start();
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long start = System.nanoTime();
+        for (int i = 0; i < updates; i++)
+            update(stream, random);
+        long publish = System.nanoTime() - start;
+        done.set(true);
+        for (Thread thread : threads)
+            thread.join();
+        long elapsed = System.nanoTime() - start;
+
+        long skips = 0;
+        for (SpectatorStream.Subscriber subscription : subscriptions)
+            skips += subscription.skips();
+        return new double[]{(double) publish / updates, read.get() * 1e9 / elapsed, skips};
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int updates = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int readers = args.length > 1 ? Integer.parseInt(args[1])
+                : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        SpectatorBenchmark benchmark = new SpectatorBenchmark();
+        benchmark.run(100, updates / 4, readers); // (warm up)
+
+        System.out.printf("%d processors, %d updates, %d reader threads%n", Runtime.getRuntime().availableProcessors(),
+                updates, readers);
+        System.out.printf("%12s %12s %16s %12s%n", "subscribers", "ns/update", "messages read/s", "skips");
+        for (int subscribers : SUBSCRIBERS) {
+            double[] result = benchmark.run(subscribers, updates, readers);
+            System.out.printf("%12d %12.1f %16.0f %12.0f%n", subscribers, result[0], result[1], result[2]);
+        }
+    }
+}
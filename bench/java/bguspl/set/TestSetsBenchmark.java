@@ -0,0 +1,126 @@
+package bguspl.set;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Compares the ways of checking many candidate sets: the original scalar testSet (a feature matrix per candidate),
+ * the packed testSet called once per candidate, and the batch testSets over a packed array of candidates, on decks of
+ * a few feature counts and sizes.
+ *
+ * Usage: TestSetsBenchmark [candidates [millis per run]].
+ */
+public class TestSetsBenchmark {
+
+    private static final int[][] DECKS = {{3, 4}, {3, 10}, {4, 4}, {5, 5}}; // feature size, feature count
+
+    private final Config config;
+    private final Util util;
+
+    public TestSetsBenchmark(int featureSize, int featureCount) {
+        Properties properties = new Properties();
+        properties.setProperty("FeatureSize", Integer.toString(featureSize));
+        properties.setProperty("FeatureCount", Integer.toString(featureCount));
+        properties.setProperty("LogLevel", "OFF");
+        config = new Config(Logger.getAnonymousLogger(), properties);
+        util = new UtilImpl(config);
+    }
+
+    /**
+     * The scalar testSet the batch replaced (kept here as it was, to compare against).
+     */
+    private boolean scalarTestSet(int[] cards) {
+        int[][] features = util.cardsToFeatures(Arrays.copyOf(cards, cards.length));
+        for (int i = 0; i < config.featureCount; ++i) {
+            boolean sameSame = true, butDifferent = true;
+
+            // check if this features is sameSame in all cards
+            for (int j = 1; j < features.length; ++j)
+                if (features[0][i] != features[j][i]) {
+                    sameSame = false;
+                    break;
+                }
+
+            // check if this feature is butDifferent in all cards
+            for (int j = 1; j < features.length; ++j)
+                for (int k = j; k < features.length; ++k)
+                    if (features[j - 1][i] == features[k][i]) {
+                        butDifferent = false;
+                        break;
+                    }
+
+            if (sameSame == butDifferent) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return - the cards of random candidates (distinct cards each, about half of them legal sets).
+     */
+    private int[] candidates(int count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int setSize = config.featureSize;
+        int[] cards = new int[count * setSize];
+        for (int i = 0; i < count; i++) {
+            int[] set = random.ints(0, config.deckSize).distinct().limit(setSize).toArray();
+            if (random.nextBoolean()) {
+                int last = util.completeSet(set);
+                if (last >= 0 && Arrays.stream(set, 0, setSize - 1).noneMatch(card -> card == last))
+                    set[setSize - 1] = last;
+            }
+            System.arraycopy(set, 0, cards, i * setSize, setSize);
+        }
+        return cards;
+    }
+
+    /**
+     * @return - the nanoseconds per candidate of each way (scalar, packed testSet, testSets).
+     */
+    private double[] measure(int[] cards, int count, long millis) {
+        int setSize = config.featureSize;
+        int[][] sets = new int[count][];
+        for (int i = 0; i < count; i++)
+            sets[i] = Arrays.copyOfRange(cards, i * setSize, (i + 1) * setSize);
+        long[] legal = util.testSets(cards, count);
+        for (int i = 0; i < count; i++) {
+            boolean batch = (legal[i >>> 6] & 1L << i) != 0;
+            if (batch != util.testSet(sets[i]) || setSize == 3 && batch != scalarTestSet(sets[i]))
+                throw new IllegalStateException("the ways disagree on " + Arrays.toString(sets[i]));
+        }
+
+        double[] nanos = new double[3];
+        for (int way = 0; way < 3; way++) {
+            long checked = 0, sink = 0;
+            long start = System.nanoTime(), end = start + millis * 1_000_000;
+            while (System.nanoTime() < end) {
+                if (way == 2)
+                    sink += util.testSets(cards, count)[0];
+                else
+                    for (int[] set : sets)
+                        if (way == 0 ? scalarTestSet(set) : util.testSet(set)) sink++;
+                checked += count;
+            }
+            if (sink == 42) System.out.print(""); // (keeps the verdicts from being optimized away)
+            nanos[way] = (double) (System.nanoTime() - start) / checked;
+        }
+        return nanos;
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+        System.out.printf("%d random candidates, nanoseconds per candidate%n", count);
+        System.out.printf("%8s %10s %10s %10s %8s%n", "deck", "scalar", "testSet", "testSets", "speedup");
+        for (int[] deck : DECKS) {
+            TestSetsBenchmark benchmark = new TestSetsBenchmark(deck[0], deck[1]);
+            int[] cards = benchmark.candidates(count);
+            benchmark.measure(cards, count, millis / 4); // (warm up)
+            double[] nanos = benchmark.measure(cards, count, millis);
+            System.out.printf("%8s %10.1f %10.1f %10.1f %7.0fx%n", deck[0] + "^" + deck[1], nanos[0], nanos[1],
+                    nanos[2], nanos[0] / nanos[2]);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package bguspl.set.ex;
+
+import bguspl.set.Config;
+import bguspl.set.Env;
+import bguspl.set.Util;
+import bguspl.set.UtilImpl;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Measures how long Dealer.shouldFinish takes on large decks (3^FeatureCount cards), with an empty table: on the full
+ * deck, on a random half of it, and on a deck without any set (the worst case, where every pair of cards is tried).
+ *
+ * Usage: ShouldFinishBenchmark [feature count [millis per run]].
+ */
+public class ShouldFinishBenchmark {
+
+    private final Config config;
+    private final Util util;
+    private final Dealer dealer;
+    private final List<Integer> deck;
+
+    @SuppressWarnings("unchecked")
+    public ShouldFinishBenchmark(int featureCount) throws ReflectiveOperationException {
+        Logger logger = Logger.getAnonymousLogger();
+        Properties properties = new Properties();
+        properties.setProperty("FeatureCount", Integer.toString(featureCount));
+        properties.setProperty("LogLevel", "OFF");
+        config = new Config(logger, properties);
+        util = new UtilImpl(config);
+        Env env = new Env(logger, config, null, util);
+        dealer = new Dealer(env, new Table(env), new Player[0]);
+
+        // (the deck is private to the dealer, so its contents are set through reflection)
+        Field deckField = Dealer.class.getDeclaredField("deck");
+        deckField.setAccessible(true);
+        deck = (List<Integer>) deckField.get(dealer);
+    }
+
+    /**
+     * @return - a deck without any set, chosen greedily from the cards in a random order.
+     */
+    private List<Integer> withoutSets(Random random) {
+        List<Integer> cards = new ArrayList<>(deck.size());
+        for (int card = 0; card < config.deckSize; card++)
+            cards.add(card);
+        Collections.shuffle(cards, random);
+        boolean[] completesSet = new boolean[config.deckSize];
+        List<Integer> chosen = new ArrayList<>();
+        int[] pair = new int[2];
+        for (int card : cards) {
+            if (completesSet[card]) continue;
+            pair[0] = card;
+            for (int other : chosen) {
+                pair[1] = other;
+                completesSet[util.completeSet(pair)] = true;
+            }
+            chosen.add(card);
+        }
+        return chosen;
+    }
+
+    /**
+     * @return - the average time of a shouldFinish call on the given deck, in microseconds.
+     */
+    private double measure(List<Integer> cards, boolean finished, long millis) {
+        deck.clear();
+        deck.addAll(cards);
+        if (dealer.shouldFinish() != finished)
+            throw new IllegalStateException("shouldFinish should be " + finished + " on this deck");
+        long calls = 0;
+        long start = System.nanoTime(), end = start + millis * 1_000_000;
+        while (System.nanoTime() < end) {
+            dealer.shouldFinish();
+            calls++;
+        }
+        return (System.nanoTime() - start) / 1e3 / calls;
+    }
+
+    public static void main(String[] args) throws ReflectiveOperationException {
+        int featureCount = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        ShouldFinishBenchmark benchmark = new ShouldFinishBenchmark(featureCount);
+        Random random = new Random(42);
+
+        List<Integer> full = new ArrayList<>(benchmark.deck);
+        List<Integer> half = new ArrayList<>(full);
+        Collections.shuffle(half, random);
+        half = half.subList(0, half.size() / 2);
+        List<Integer> withoutSets = benchmark.withoutSets(random);
+
+        System.out.printf("%d cards (3^%d), shouldFinish with an empty table, microseconds per call%n",
+                benchmark.config.deckSize, featureCount);
+        for (int run = 0; run < 2; run++) { // (the first run warms up)
+            double fullMicros = benchmark.measure(full, false, millis);
+            double halfMicros = benchmark.measure(half, false, millis);
+            double withoutSetsMicros = benchmark.measure(withoutSets, true, millis);
+            if (run == 0) continue;
+            System.out.printf("%-24s %10.2f%n", "full deck", fullMicros);
+            System.out.printf("%-24s %10.2f%n", "random half", halfMicros);
+            System.out.printf("%-24s %10.2f%n", "no sets (" + withoutSets.size() + " cards)", withoutSetsMicros);
+        }
+    }
+}
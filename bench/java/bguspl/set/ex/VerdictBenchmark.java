@@ -0,0 +1,129 @@
+package bguspl.set.ex;
+
+import bguspl.set.Config;
+import bguspl.set.Util;
+import bguspl.set.UtilImpl;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures how many claim verdicts a second the dealer can compute for a batch of claims: on the dealer thread alone
+ * (Util.testSets), and with 1..N verifier threads (Verifiers, as with VerifierThreads=N), to tell how the verdict
+ * throughput scales with the number of verifiers, and from which batch size the handoff pays off.
+ *
+ * The claims are sharded by random slots of the table, like the claims of a game.
+ *
+ * Usage: VerdictBenchmark [max verifier threads [millis per run]].
+ */
+public class VerdictBenchmark {
+
+    private static final int[] BATCH_SIZES = {16, 64, 256, 1024, 4096};
+
+    private final Util util;
+    private final Config config;
+
+    public VerdictBenchmark(Config config) {
+        this.config = config;
+        util = new UtilImpl(config);
+    }
+
+    /**
+     * @return - the cards of a batch of random claims, about half of them legal sets.
+     */
+    private int[] batch(int count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int setSize = config.featureSize;
+        int[] cards = new int[count * setSize];
+        for (int i = 0; i < count; i++) {
+            int[] set = random.ints(0, config.deckSize).distinct().limit(setSize).toArray();
+            if (random.nextBoolean()) {
+                int last = util.completeSet(set);
+                if (last >= 0 && last != set[0] && last != set[1]) set[setSize - 1] = last;
+            }
+            System.arraycopy(set, 0, cards, i * setSize, setSize);
+        }
+        return cards;
+    }
+
+    /**
+     * @return - the shard of each claim of a batch, by random slots of the table.
+     */
+    private int[] shards(Verifiers verifiers, int count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] shards = new int[count];
+        for (int i = 0; i < count; i++) {
+            Integer[] slots = random.ints(0, config.tableSize).distinct().limit(config.featureSize).boxed()
+                    .toArray(Integer[]::new);
+            shards[i] = verifiers.shard(Arrays.asList(slots));
+        }
+        return shards;
+    }
+
+    /**
+     * @return - the verdicts a second, checking the batch on the calling thread.
+     */
+    private double serial(int[] cards, int count, long millis) {
+        long verdicts = 0, sink = 0;
+        long start = System.nanoTime(), end = start + millis * 1_000_000;
+        while (System.nanoTime() < end) {
+            sink += util.testSets(cards, count)[0];
+            verdicts += count;
+        }
+        if (sink == 42) System.out.print(""); // (keeps the verdicts from being optimized away)
+        return verdicts * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * @return - the verdicts a second, checking the batch with the verifiers (checking that they agree with testSets).
+     */
+    private double parallel(Verifiers verifiers, int[] cards, int count, long millis) {
+        int[] shards = shards(verifiers, count);
+        if (!Arrays.equals(verifiers.testSets(cards, shards, count), util.testSets(cards, count)))
+            throw new IllegalStateException("the verifiers do not agree with testSets");
+        long verdicts = 0, sink = 0;
+        long start = System.nanoTime(), end = start + millis * 1_000_000;
+        while (System.nanoTime() < end) {
+            sink += verifiers.testSets(cards, shards, count)[0];
+            verdicts += count;
+        }
+        if (sink == 42) System.out.print("");
+        return verdicts * 1e9 / (System.nanoTime() - start);
+    }
+
+    public static void main(String[] args) {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() - 1;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setLevel(Level.OFF);
+        Config config = new Config(logger, "");
+        VerdictBenchmark benchmark = new VerdictBenchmark(config);
+
+        Verifiers[] stages = new Verifiers[maxThreads + 1];
+        for (int threads = 1; threads <= maxThreads; threads++)
+            stages[threads] = new Verifiers(benchmark.util, config.featureSize, threads, "verifier" + threads + "-");
+
+        System.out.printf("%d processors, verdicts per second (millions)%n", Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %10s", "batch", "dealer");
+        for (int threads = 1; threads <= maxThreads; threads++)
+            System.out.printf(" %12s", "+" + threads + (threads == 1 ? " verifier" : " verifiers"));
+        System.out.println();
+        try {
+            for (int count : BATCH_SIZES) {
+                int[] cards = benchmark.batch(count);
+                benchmark.serial(cards, count, millis); // (warm up)
+                System.out.printf("%8d %10.1f", count, benchmark.serial(cards, count, millis) / 1e6);
+                for (int threads = 1; threads <= maxThreads; threads++) {
+                    benchmark.parallel(stages[threads], cards, count, millis / 4); // (warm up)
+                    System.out.printf(" %12.1f", benchmark.parallel(stages[threads], cards, count, millis) / 1e6);
+                }
+                System.out.println();
+            }
+        } finally {
+            for (int threads = 1; threads <= maxThreads; threads++)
+                stages[threads].terminate();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package bguspl.set;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * All the card images of the deck, scaled to the cell size and packed into a single image.
+ * Cards are decoded in parallel in the background, and a card that is needed before its turn is decoded on demand.
+ * Optionally, the decoded pixels are saved to a raw ARGB cache file which is memory mapped on later launches.
+ */
+class CardAtlas implements CardImages {
+
+    /**
+     * The cache file header: magic, deck size, feature count, feature size, cell width, cell height.
+     */
+    private static final int CACHE_MAGIC = 0x5E7CA4D5;
+    private static final int CACHE_HEADER_INTS = 6;
+
+    private static final int LOADED = 1;
+
+    private final Logger logger;
+    private final Config config;
+
+    /**
+     * The atlas image, holding the cards in row major order (atlasColumns cards per row).
+     */
+    private final BufferedImage atlas;
+    private final int atlasColumns;
+
+    /**
+     * Whether each card was already drawn into the atlas.
+     */
+    private final AtomicIntegerArray loaded;
+    private final Object[] loadLocks = new Object[64];
+
+    /**
+     * The pre-decoded pixels of all cards (null if there is no valid cache file).
+     */
+    private final IntBuffer cache;
+
+    CardAtlas(Logger logger, Config config) {
+        this.logger = logger;
+        this.config = config;
+
+        atlasColumns = (int) Math.ceil(Math.sqrt(config.deckSize));
+        int atlasRows = (config.deckSize + atlasColumns - 1) / atlasColumns;
+        atlas = new BufferedImage(atlasColumns * config.cellWidth, atlasRows * config.cellHeight, BufferedImage.TYPE_INT_ARGB_PRE);
+        loaded = new AtomicIntegerArray(config.deckSize);
+        for (int i = 0; i < loadLocks.length; i++)
+            loadLocks[i] = new Object();
+
+        cache = config.cardCacheFile.isEmpty() ? null : mapCache(Paths.get(config.cardCacheFile));
+    }
+
+    /**
+     * Checks whether there is a png image for every card of the configured deck.
+     */
+    static boolean hasCardImages(Config config) {
+        if (config.featureSize >= 10) return false; // otherwise there will be naming conflicts
+        ClassLoader classLoader = CardAtlas.class.getClassLoader();
+        return classLoader.getResource(cardFilename(config, 0)) != null
+                && classLoader.getResource(cardFilename(config, config.deckSize - 1)) != null;
+    }
+
+    private static String cardFilename(Config config, int card) {
+        return "cards/" + UserInterfaceSwing.intInBaseToPaddedString(card, config.featureCount, config.featureSize) + ".png";
+    }
+
+    /**
+     * Starts decoding all the cards in the background (on the common fork join pool).
+     */
+    void loadAllAsync() {
+        CompletableFuture.runAsync(() -> IntStream.range(0, config.deckSize).parallel().forEach(this::load))
+                .thenRun(() -> {
+                    if (cache == null && !config.cardCacheFile.isEmpty()) writeCache(Paths.get(config.cardCacheFile));
+                })
+                .exceptionally(e -> {
+                    logger.severe("loading card images failed: " + e.getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * Makes sure the card is in the atlas, decoding it on the calling thread if it was not decoded yet.
+     */
+    @Override
+    public void load(int card) {
+        if (loaded.get(card) == LOADED) return;
+        synchronized (loadLocks[card % loadLocks.length]) {
+            if (loaded.get(card) == LOADED) return;
+            int[] pixels = cache != null ? readCached(card) : decode(card);
+            atlas.getRaster().setDataElements(cardX(card), cardY(card), config.cellWidth, config.cellHeight, pixels);
+            loaded.set(card, LOADED);
+        }
+    }
+
+    @Override
+    public void draw(Graphics g, int card, int x, int y) {
+        load(card);
+        int sx = cardX(card), sy = cardY(card);
+        g.drawImage(atlas, x, y, x + config.cellWidth, y + config.cellHeight,
+                sx, sy, sx + config.cellWidth, sy + config.cellHeight, null);
+    }
+
+    private int cardX(int card) {
+        return card % atlasColumns * config.cellWidth;
+    }
+
+    private int cardY(int card) {
+        return card / atlasColumns * config.cellHeight;
+    }
+
+    private int[] decode(int card) {
+        String filename = cardFilename(config, card);
+        URL imageResource = getClass().getClassLoader().getResource(filename);
+        if (imageResource == null)
+            throw new RuntimeException(new FileNotFoundException(filename));
+
+        BufferedImage scaled = new BufferedImage(config.cellWidth, config.cellHeight, BufferedImage.TYPE_INT_ARGB_PRE);
+        try {
+            Graphics2D g = scaled.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(ImageIO.read(imageResource), 0, 0, config.cellWidth, config.cellHeight, null);
+            g.dispose();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return (int[]) scaled.getRaster().getDataElements(0, 0, config.cellWidth, config.cellHeight, null);
+    }
+
+    private int cardPixels() {
+        return config.cellWidth * config.cellHeight;
+    }
+
+    private int[] readCached(int card) {
+        int[] pixels = new int[cardPixels()];
+        cache.duplicate().position(CACHE_HEADER_INTS + card * cardPixels()).get(pixels);
+        return pixels;
+    }
+
+    private int[] cacheHeader() {
+        return new int[]{CACHE_MAGIC, config.deckSize, config.featureCount, config.featureSize, config.cellWidth, config.cellHeight};
+    }
+
+    /**
+     * Maps the cache file to memory if it exists and matches the current configuration.
+     *
+     * @return - the mapped pixels (starting with the header), or null if the cache cannot be used.
+     */
+    private IntBuffer mapCache(Path path) {
+        long expectedBytes = (CACHE_HEADER_INTS + (long) config.deckSize * cardPixels()) * Integer.BYTES;
+        if (!path.toFile().isFile() || path.toFile().length() != expectedBytes) return null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            IntBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, expectedBytes).asIntBuffer();
+            int[] header = cacheHeader();
+            for (int i = 0; i < header.length; i++)
+                if (mapped.get(i) != header[i]) return null;
+            logger.info("card images are loaded from cache file " + path);
+            return mapped;
+        } catch (IOException e) {
+            logger.severe("cannot map card cache file " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeCache(Path path) {
+        WritableRaster raster = atlas.getRaster();
+        ByteBuffer buffer = ByteBuffer.allocate(cardPixels() * Integer.BYTES);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER_INTS * Integer.BYTES);
+            header.asIntBuffer().put(cacheHeader());
+            while (header.hasRemaining()) channel.write(header);
+            for (int card = 0; card < config.deckSize; card++) {
+                int[] pixels = (int[]) raster.getDataElements(cardX(card), cardY(card), config.cellWidth, config.cellHeight, null);
+                buffer.clear();
+                buffer.asIntBuffer().put(pixels);
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            logger.info("card images were saved to cache file " + path);
+        } catch (IOException e) {
+            logger.severe("cannot write card cache file " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package bguspl.set;
+
+/**
+ * Packs the features of a card into a single long, one 4 bit lane per feature (feature i in bits 4i..4i+3).
+ * Lanes are wide enough to add up the features of a 3 card set without carrying into the next lane, so whole cards
+ * can be combined with a few word operations instead of a loop over the features.
+ */
+class CardEncoding {
+
+    static final int LANE_BITS = 4;
+    static final int MAX_FEATURES = Long.SIZE / LANE_BITS;
+    static final int MAX_FEATURE_SIZE = 1 << LANE_BITS;
+
+    /**
+     * The lowest bit of every lane in use.
+     */
+    final long lowBits;
+
+    private final int featureCount;
+    private final int featureSize;
+
+    CardEncoding(int featureCount, int featureSize) {
+        if (featureCount > MAX_FEATURES || featureSize > MAX_FEATURE_SIZE)
+            throw new IllegalArgumentException("cards with " + featureCount + " features of " + featureSize
+                    + " values cannot be packed (max " + MAX_FEATURES + " features of " + MAX_FEATURE_SIZE + " values)");
+        this.featureCount = featureCount;
+        this.featureSize = featureSize;
+        long low = 0;
+        for (int i = 0; i < featureCount; i++)
+            low |= 1L << (i * LANE_BITS);
+        lowBits = low;
+    }
+
+    /**
+     * @param card - the card id.
+     * @return - the packed features of the card.
+     */
+    long pack(int card) {
+        long packed = 0;
+        for (int i = featureCount - 1; i >= 0; --i) {
+            packed |= (long) (card % featureSize) << (i * LANE_BITS);
+            card /= featureSize;
+        }
+        return packed;
+    }
+
+    /**
+     * @param packed - the packed features of a card.
+     * @return - the card id.
+     */
+    int unpack(long packed) {
+        int card = 0;
+        for (int i = 0; i < featureCount; i++)
+            card = card * featureSize + (int) (packed >>> (i * LANE_BITS) & (MAX_FEATURE_SIZE - 1));
+        return card;
+    }
+
+    /**
+     * @param packed  - the packed features of a card.
+     * @param feature - the feature index.
+     * @return - the value of the feature.
+     */
+    static int feature(long packed, int feature) {
+        return (int) (packed >>> (feature * LANE_BITS)) & (MAX_FEATURE_SIZE - 1);
+    }
+
+    /**
+     * Checks all the features of 3 cards at once (for a feature size of 3 only): a feature is all same or all
+     * different iff the sum of its 3 values is 0, 3 or 6. With the sum bits s2 s1 s0 of a lane, those are exactly the
+     * sums where s0 ^ s1 ^ s2 == 0 and not (s2 and not s1).
+     *
+     * @return - true iff the cards form a legal set.
+     */
+    boolean isSet(long a, long b, long c) {
+        long sum = a + b + c; // 0..6 in every lane, no carries
+        return ((sum ^ sum >>> 1 ^ sum >>> 2 | sum >>> 2 & ~(sum >>> 1)) & lowBits) == 0;
+    }
+
+    /**
+     * Completes two cards into a legal set (for a feature size of 3 only): every feature of the third card is
+     * -(a + b) mod 3, so it is the same as the other two when they are the same, and different otherwise.
+     *
+     * @param a - the packed features of the first card.
+     * @param b - the packed features of the second card.
+     * @return - the packed features of the only card that forms a legal set with a and b.
+     */
+    long third(long a, long b) {
+        long t = 6 * lowBits - (a + b); // 2..6 in every lane, no borrows
+        t -= 3 * ((t >>> 2 | t >>> 1 & t) & lowBits); // t >= 3 ? t - 3 : t  -> 0..3
+        t -= 3 * ((t >>> 1 & t) & lowBits); // t == 3 ? 0 : t  -> 0..2
+        return t;
+    }
+}
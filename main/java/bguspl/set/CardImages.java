@@ -0,0 +1,26 @@
+package bguspl.set;
+
+import java.awt.Graphics;
+
+/**
+ * A source of card images, scaled to the cell size.
+ */
+interface CardImages {
+
+    /**
+     * Makes sure the image of the card is ready to be drawn.
+     *
+     * @param card - the card id.
+     */
+    void load(int card);
+
+    /**
+     * Draws a card with its top left corner at x, y.
+     *
+     * @param g    - the graphics to draw on.
+     * @param card - the card id.
+     * @param x    - the left coordinate.
+     * @param y    - the top coordinate.
+     */
+    void draw(Graphics g, int card, int x, int y);
+}
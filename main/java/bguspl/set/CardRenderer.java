@@ -0,0 +1,154 @@
+package bguspl.set;
+
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Draws card images from the card features, for decks that have no png files (e.g. more features or more values
+ * per feature than the shipped deck). Only the most recently used images are kept, which is about the cards that are
+ * currently on the table.
+ *
+ * The features are drawn as: color, number of shapes, shape, shading. Any further features are drawn as a row of
+ * value boxes at the bottom of the card.
+ */
+class CardRenderer implements CardImages {
+
+    private static final int MARGIN = 8;
+
+    private final Config config;
+    private final Util util;
+
+    /**
+     * The rendered images by card id, in least recently used order.
+     */
+    private final Map<Integer, BufferedImage> images;
+
+    CardRenderer(Config config, Util util) {
+        this.config = config;
+        this.util = util;
+
+        // the cards on the table, plus the ones just replaced by a set
+        int capacity = config.tableSize + config.featureSize;
+        images = new LinkedHashMap<>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, BufferedImage> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public void load(int card) {
+        image(card);
+    }
+
+    @Override
+    public void draw(Graphics g, int card, int x, int y) {
+        g.drawImage(image(card), x, y, null);
+    }
+
+    private synchronized BufferedImage image(int card) {
+        return images.computeIfAbsent(card, this::render);
+    }
+
+    private int feature(int[] features, int i) {
+        return i < features.length ? features[i] : 0;
+    }
+
+    private BufferedImage render(int card) {
+        int[] features = util.cardToFeatures(card);
+        int width = config.cellWidth, height = config.cellHeight;
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+        g.setColor(Color.WHITE);
+        g.fillRoundRect(1, 1, width - 2, height - 2, MARGIN * 2, MARGIN * 2);
+        g.setColor(Color.GRAY);
+        g.drawRoundRect(1, 1, width - 3, height - 3, MARGIN * 2, MARGIN * 2);
+
+        // extra features get a row of value boxes at the bottom
+        int extraFeatures = Math.max(0, features.length - 4);
+        int extraHeight = extraFeatures > 0 ? Math.max(10, height / 8) : 0;
+        if (extraFeatures > 0) drawExtraFeatures(g, features, MARGIN, height - MARGIN - extraHeight, width - 2 * MARGIN, extraHeight);
+
+        Color color = Color.getHSBColor((float) feature(features, 0) / config.featureSize, 0.8f, 0.75f);
+        int count = feature(features, 1) + 1;
+        int shape = feature(features, 2);
+        int shading = feature(features, 3);
+
+        // lay the shapes out in a row, sized for the largest possible number of shapes
+        int slots = features.length > 1 ? config.featureSize : 1;
+        int areaWidth = width - 2 * MARGIN, areaHeight = height - 2 * MARGIN - extraHeight - (extraHeight > 0 ? MARGIN : 0);
+        int shapeWidth = Math.min(areaWidth / slots - MARGIN, areaHeight / 2);
+        int shapeHeight = Math.min(areaHeight, shapeWidth * 2);
+        int left = MARGIN + (areaWidth - count * (shapeWidth + MARGIN) + MARGIN) / 2;
+        int top = MARGIN + (areaHeight - shapeHeight) / 2;
+        for (int i = 0; i < count; i++)
+            drawShape(g, shape(shape, left + i * (shapeWidth + MARGIN), top, shapeWidth, shapeHeight), color, shading);
+
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * An oval for the first value, and a polygon with value + 2 sides for the others.
+     */
+    private Shape shape(int value, int x, int y, int width, int height) {
+        if (value == 0) return new Ellipse2D.Double(x, y, width, height);
+        int sides = value + 2;
+        Path2D.Double polygon = new Path2D.Double();
+        for (int i = 0; i < sides; i++) {
+            double angle = -Math.PI / 2 + 2 * Math.PI * i / sides;
+            double px = x + width / 2.0 + Math.cos(angle) * width / 2.0;
+            double py = y + height / 2.0 + Math.sin(angle) * height / 2.0;
+            if (i == 0) polygon.moveTo(px, py);
+            else polygon.lineTo(px, py);
+        }
+        polygon.closePath();
+        return polygon;
+    }
+
+    /**
+     * Solid for the first value, empty for the last one and stripes getting sparser in between.
+     */
+    private void drawShape(Graphics2D g, Shape shape, Color color, int shading) {
+        g.setColor(color);
+        if (shading == 0) {
+            g.fill(shape);
+        } else if (shading < config.featureSize - 1) {
+            Shape clip = g.getClip();
+            g.clip(shape);
+            Rectangle bounds = shape.getBounds();
+            int gap = 2 + 2 * shading;
+            for (int y = bounds.y; y < bounds.y + bounds.height; y += gap)
+                g.drawLine(bounds.x, y, bounds.x + bounds.width, y);
+            g.setClip(clip);
+        }
+        g.setStroke(new BasicStroke(2f));
+        g.draw(shape);
+    }
+
+    private void drawExtraFeatures(Graphics2D g, int[] features, int x, int y, int width, int height) {
+        int boxes = features.length - 4;
+        int boxWidth = width / boxes;
+        g.setFont(new Font("SansSerif", Font.BOLD, Math.max(8, height - 4)));
+        FontMetrics metrics = g.getFontMetrics();
+        for (int i = 0; i < boxes; i++) {
+            int value = features[4 + i];
+            int boxX = x + i * boxWidth;
+            float brightness = 0.95f - 0.6f * value / Math.max(1, config.featureSize - 1);
+            g.setColor(Color.getHSBColor(0f, 0f, brightness));
+            g.fillRect(boxX + 1, y, boxWidth - 2, height);
+            g.setColor(brightness < 0.6f ? Color.WHITE : Color.BLACK);
+            String text = Integer.toString(value, Character.MAX_RADIX);
+            g.drawString(text, boxX + (boxWidth - metrics.stringWidth(text)) / 2, y + (height + metrics.getAscent() - metrics.getDescent()) / 2);
+        }
+    }
+}
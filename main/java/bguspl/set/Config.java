@@ -81,11 +81,69 @@ public class Config {
      */
     public final long tableDelayMillis;
 
+    /**
+     * The minimum number of milliseconds between two key presses of a computer player (single threaded engine only)
+     */
+    public final long computerMoveMillis;
+
     /**
      * The number of milliseconds to pause at the end of the game before closing
      */
     public final long endGamePauseMillies;
 
+    /**
+     * The number of threads that check claimed sets in parallel with the dealer thread (0 to check them on the dealer
+     * thread only)
+     */
+    public final int verifierThreads;
+
+    /**
+     * Whether to run the whole game on a single thread (an event loop) instead of a thread per player
+     */
+    public final boolean singleThreaded;
+
+    /**
+     * The loopback TCP port to accept network players on (0 for no game server)
+     */
+    public final int serverPort;
+
+    /**
+     * The number of game events buffered for each subscriber of the event bus
+     */
+    public final int eventBufferSize;
+
+    /**
+     * The number of game events buffered for a subscriber with the Grow policy, preallocated when it subscribes (the
+     * events that do not fit are dropped)
+     */
+    public final int eventBufferMaxSize;
+
+    /**
+     * What to do with a game event when the buffer of a subscriber is full (Drop, Conflate, Grow or Block; Block makes
+     * the game threads wait for the subscriber while holding game locks, which stalls the game)
+     */
+    public final GameEventBus.OverflowPolicy eventOverflowPolicy;
+
+    /**
+     * The file to save game checkpoints to, and resume a crashed game from (empty for no checkpoints)
+     */
+    public final String checkpointFile;
+
+    /**
+     * The number of milliseconds between periodic checkpoints (checkpoints are also saved after every verdict)
+     */
+    public final long checkpointMillis;
+
+    /**
+     * The file to keep the leaderboard of all the games played in (empty for no leaderboard)
+     */
+    public final String leaderboardFile;
+
+    /**
+     * The directory to keep the history of all the games played and their claims in, for analysis (empty for none)
+     */
+    public final String historyDirectory;
+
     /**
      * The names of the players to display on the screen
      * Note: if there are more players than names, the remaining players will be called "Player 3", "Player 4", etc.
@@ -132,6 +190,16 @@ public class Config {
      */
     public final int fontSize;
 
+    /**
+     * The capacity of the asynchronous ui command queue (0 to update the ui synchronously from the game threads)
+     */
+    public final int uiQueueCapacity;
+
+    /**
+     * The file to cache the decoded card images in, for faster startup (empty to disable the cache)
+     */
+    public final String cardCacheFile;
+
     /**
      * The scancodes of the keyboard input data for each player
      * Notes:
@@ -196,7 +264,10 @@ public class Config {
         // cards settings
         featureSize = Integer.parseInt(properties.getProperty("FeatureSize", "3"));
         featureCount = Integer.parseInt(properties.getProperty("FeatureCount", "4"));
-        deckSize = (int) Math.pow(featureSize, featureCount);
+        int cards = 1;
+        for (int i = 0; i < featureCount; i++)
+            cards = Math.multiplyExact(cards, featureSize); // fails rather than silently truncating huge decks
+        deckSize = cards;
 
         // gameplay settings
         humanPlayers = Integer.parseInt(properties.getProperty("HumanPlayers", "2"));
@@ -209,7 +280,18 @@ public class Config {
         pointFreezeMillis = (long) (Double.parseDouble(properties.getProperty("PointFreezeSeconds", "1")) * 1000.0);
         penaltyFreezeMillis = (long) (Double.parseDouble(properties.getProperty("PenaltyFreezeSeconds", "3")) * 1000.0);
         tableDelayMillis = (long) (Double.parseDouble(properties.getProperty("TableDelaySeconds", "0.1")) * 1000.0);
+        computerMoveMillis = (long) (Double.parseDouble(properties.getProperty("ComputerMoveSeconds", "0.01")) * 1000.0);
         endGamePauseMillies = (long) (Double.parseDouble(properties.getProperty("EndGamePauseSeconds", "5")) * 1000.0);
+        verifierThreads = Integer.parseInt(properties.getProperty("VerifierThreads", "0"));
+        singleThreaded = Boolean.parseBoolean(properties.getProperty("SingleThreaded", "False"));
+        serverPort = Integer.parseInt(properties.getProperty("ServerPort", "0"));
+        eventBufferSize = Integer.parseInt(properties.getProperty("EventBufferSize", "1024"));
+        eventBufferMaxSize = Integer.parseInt(properties.getProperty("EventBufferMaxSize", "65536"));
+        eventOverflowPolicy = GameEventBus.OverflowPolicy.valueOf(properties.getProperty("EventOverflowPolicy", "Drop").trim().toUpperCase());
+        checkpointFile = properties.getProperty("CheckpointFile", "").trim();
+        checkpointMillis = (long) (Double.parseDouble(properties.getProperty("CheckpointSeconds", "1")) * 1000.0);
+        leaderboardFile = properties.getProperty("LeaderboardFile", "").trim();
+        historyDirectory = properties.getProperty("HistoryDirectory", "").trim();
 
         // ui settings
         String[] names = properties.getProperty("PlayerNames", "Player 1, Player 2").split(",");
@@ -224,6 +306,8 @@ public class Config {
         playerCellWidth = Integer.parseInt(properties.getProperty("PlayerCellWidth", "300"));
         playerCellHeight = Integer.parseInt(properties.getProperty("PlayerCellHeight", "40"));
         fontSize = Integer.parseInt(properties.getProperty("FontSize", "40"));
+        uiQueueCapacity = Integer.parseInt(properties.getProperty("UiQueueCapacity", "1024"));
+        cardCacheFile = properties.getProperty("CardCacheFile", "").trim();
 
         // keyboard input data
         playerKeys = new int[players][rows * columns];
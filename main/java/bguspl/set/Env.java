@@ -8,11 +8,13 @@ public class Env {
     public final Config config;
     public final UserInterface ui;
     public final Util util;
+    public final GameEventBus events;
 
     public Env(Logger logger, Config config, UserInterface ui, Util util) {
         this.logger = logger;
         this.config = config;
         this.ui = ui;
         this.util = util;
+        this.events = new GameEventBus(config);
     }
 }
@@ -0,0 +1,94 @@
+package bguspl.set;
+
+/**
+ * A change of the game state, as published by GameEventBus.
+ *
+ * Events are preallocated and recycled: the event passed to a subscriber's onNext is only valid until onNext returns,
+ * so a subscriber that keeps an event must copy it (see copy()).
+ */
+public class GameEvent {
+
+    public enum Type {
+        CARD_PLACED,    // slot, card
+        CARD_REMOVED,   // slot, card
+        TOKEN_PLACED,   // player, slot
+        TOKEN_REMOVED,  // player, slot
+        TOKENS_REMOVED, // (all the tokens on the table)
+        SET_CLAIMED,    // player
+        POINT,          // player, value = the new score
+        PENALTY,        // player
+        RESHUFFLE,      // value = the number of sets left in the game (only when the game goes on)
+        FINAL_SCORE,    // player, value = the score (when the game is over, before the winners)
+        WINNER          // player, value = the number of winners
+    }
+
+    private Type type;
+    private int player = -1;
+    private int slot = -1;
+    private int card = -1;
+    private int value;
+    private long time;
+
+    void set(Type type, int player, int slot, int card, int value, long time) {
+        this.type = type;
+        this.player = player;
+        this.slot = slot;
+        this.card = card;
+        this.value = value;
+        this.time = time;
+    }
+
+    void set(GameEvent event) {
+        set(event.type, event.player, event.slot, event.card, event.value, event.time);
+    }
+
+    /**
+     * @return - a copy of the event, that is not recycled.
+     */
+    public GameEvent copy() {
+        GameEvent copy = new GameEvent();
+        copy.set(this);
+        return copy;
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    /**
+     * @return - the player the event is about (-1 if none).
+     */
+    public int player() {
+        return player;
+    }
+
+    /**
+     * @return - the slot the event is about (-1 if none).
+     */
+    public int slot() {
+        return slot;
+    }
+
+    /**
+     * @return - the card the event is about (-1 if none).
+     */
+    public int card() {
+        return card;
+    }
+
+    public int value() {
+        return value;
+    }
+
+    /**
+     * @return - when the event happened (System.nanoTime).
+     */
+    public long time() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        return type + "(player " + player + ", slot " + slot + ", card " + card + ", value " + value + ")";
+    }
+}
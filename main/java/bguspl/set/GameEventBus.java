@@ -0,0 +1,327 @@
+package bguspl.set;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the game events (see GameEvent) to any number of Flow subscribers, asynchronously: a subscriber is called
+ * on a thread of the bus, never on the game thread that made the change.
+ *
+ * Every subscription has a bounded buffer of events, preallocated when subscribing, which the game threads copy the
+ * events into. What happens when the buffer of a subscriber is full depends on its overflow policy; only BLOCK makes
+ * the publisher wait, so it must not be used with publishers that hold locks, as the game threads do. When there are
+ * no subscribers, publishing an event costs a single volatile read.
+ */
+public class GameEventBus implements Flow.Publisher<GameEvent> {
+
+    /**
+     * What to do with an event when the buffer of a subscriber is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the new event.
+         */
+        DROP,
+        /**
+         * Replace the newest buffered event with the new one, so the subscriber always gets the latest event.
+         */
+        CONFLATE,
+        /**
+         * Buffer up to the maximum capacity of the bus instead (see Config.eventBufferMaxSize), and drop the new event
+         * once that is full too (a slow subscriber costs memory instead of events).
+         */
+        GROW,
+        /**
+         * Make the publishing thread wait for room (the subscriber slows the publisher down). Must not be used with
+         * publishers that hold locks, such as the game threads: every thread waiting for those locks would wait for the
+         * subscriber as well.
+         */
+        BLOCK
+    }
+
+    private final int defaultCapacity;
+    private final int maxCapacity;
+    private final OverflowPolicy defaultPolicy;
+    private final Executor executor;
+
+    /**
+     * The current subscriptions (copied on write).
+     */
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    private volatile boolean closed = false;
+
+    public GameEventBus(Config config) {
+        this(config.eventBufferSize, config.eventBufferMaxSize, config.eventOverflowPolicy, drainExecutor());
+    }
+
+    /**
+     * @return - the threads that run the subscribers (of their own, so subscribers do not compete with other work on
+     *           a shared pool, such as the parallel set statistics).
+     */
+    private static Executor drainExecutor() {
+        AtomicInteger threadId = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "events" + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param defaultCapacity - the buffer size of a subscription, unless given when subscribing.
+     * @param maxCapacity     - the buffer size of a subscription with the GROW policy (if larger than its capacity).
+     * @param defaultPolicy   - the overflow policy of a subscription, unless given when subscribing.
+     * @param executor        - runs the subscribers.
+     */
+    public GameEventBus(int defaultCapacity, int maxCapacity, OverflowPolicy defaultPolicy, Executor executor) {
+        this.defaultCapacity = defaultCapacity;
+        this.maxCapacity = maxCapacity;
+        this.defaultPolicy = defaultPolicy;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super GameEvent> subscriber) {
+        subscribe(subscriber, defaultPolicy, defaultCapacity);
+    }
+
+    public void subscribe(Flow.Subscriber<? super GameEvent> subscriber, OverflowPolicy policy, int capacity) {
+        subscribe(subscriber, policy, capacity, EnumSet.allOf(GameEvent.Type.class));
+    }
+
+    /**
+     * @param types - the types of the events to pass to the subscriber (the others are not even buffered for it).
+     */
+    public void subscribe(Flow.Subscriber<? super GameEvent> subscriber, OverflowPolicy policy, int capacity,
+                          Set<GameEvent.Type> types) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if (policy == OverflowPolicy.GROW) capacity = Math.max(capacity, maxCapacity);
+        Subscription subscription = new Subscription(subscriber, policy, capacity, types);
+        subscriber.onSubscribe(subscription);
+        synchronized (this) {
+            if (closed) {
+                subscription.complete();
+                return;
+            }
+            Subscription[] current = subscriptions;
+            Subscription[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscription;
+            subscriptions = updated;
+        }
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++)
+            if (current[i] == subscription) {
+                Subscription[] updated = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                subscriptions = updated;
+                return;
+            }
+    }
+
+    /**
+     * @return - true iff anyone is subscribed (so the caller can skip preparing an event).
+     */
+    public boolean hasSubscribers() {
+        return subscriptions.length > 0;
+    }
+
+    /**
+     * Publishes an event to all the subscribers.
+     *
+     * @param player - the player the event is about (-1 if none).
+     * @param slot   - the slot the event is about (-1 if none).
+     * @param card   - the card the event is about (-1 if none).
+     */
+    public void publish(GameEvent.Type type, int player, int slot, int card, int value) {
+        Subscription[] current = subscriptions;
+        if (current.length == 0) return;
+        long time = System.nanoTime();
+        for (Subscription subscription : current)
+            subscription.offer(type, player, slot, card, value, time);
+    }
+
+    /**
+     * Completes all the subscriptions (after their buffered events), and the ones made later.
+     */
+    public void close() {
+        Subscription[] current;
+        synchronized (this) {
+            closed = true;
+            current = subscriptions;
+            subscriptions = new Subscription[0];
+        }
+        for (Subscription subscription : current)
+            subscription.complete();
+    }
+
+    /**
+     * A subscription: a ring of preallocated events, drained on the executor as long as there is demand.
+     */
+    private class Subscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super GameEvent> subscriber;
+        private final OverflowPolicy policy;
+
+        /**
+         * Whether the events of each type (by ordinal) are passed to the subscriber.
+         */
+        private final boolean[] types = new boolean[GameEvent.Type.values().length];
+
+        /**
+         * The buffered events (guarded by this): count events from head, circularly.
+         */
+        private final GameEvent[] buffer;
+        private int head = 0;
+        private int count = 0;
+
+        /**
+         * The event handed to the subscriber (drain only).
+         */
+        private final GameEvent current = new GameEvent();
+
+        private long demand = 0;
+        private boolean draining = false;
+        private boolean completed = false;
+        private boolean cancelled = false;
+
+        /**
+         * The number of events dropped or conflated (including the ones dropped by GROW once the buffer is full).
+         */
+        private long dropped = 0;
+
+        Subscription(Flow.Subscriber<? super GameEvent> subscriber, OverflowPolicy policy, int capacity,
+                     Set<GameEvent.Type> types) {
+            this.subscriber = subscriber;
+            this.policy = policy;
+            for (GameEvent.Type type : types)
+                this.types[type.ordinal()] = true;
+            buffer = new GameEvent[capacity];
+            for (int i = 0; i < capacity; i++)
+                buffer[i] = new GameEvent();
+        }
+
+        void offer(GameEvent.Type type, int player, int slot, int card, int value, long time) {
+            if (!types[type.ordinal()]) return;
+            synchronized (this) {
+                if (cancelled || completed) return;
+                if (count == buffer.length) {
+                    if (policy == OverflowPolicy.CONFLATE) {
+                        dropped++;
+                        buffer[(head + count - 1) % buffer.length].set(type, player, slot, card, value, time);
+                        return;
+                    }
+                    if (policy != OverflowPolicy.BLOCK) {
+                        dropped++; // (the buffer of GROW is already as large as it gets)
+                        return;
+                    }
+                    boolean interrupted = false;
+                    while (count == buffer.length && !cancelled && !completed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) Thread.currentThread().interrupt();
+                    if (cancelled || completed) return;
+                }
+                buffer[(head + count) % buffer.length].set(type, player, slot, card, value, time);
+                count++;
+                if (!startDraining()) return;
+            }
+            executor.execute(this);
+        }
+
+        /**
+         * @return - true iff the caller should run the drain (holding this).
+         */
+        private boolean startDraining() {
+            if (draining || cancelled || (demand == 0 || count == 0) && !(completed && count == 0)) return false;
+            draining = true;
+            return true;
+        }
+
+        void complete() {
+            synchronized (this) {
+                completed = true;
+                notifyAll();
+                if (!startDraining()) return;
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+                return;
+            }
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                if (!startDraining()) return;
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                notifyAll();
+            }
+            unsubscribe(this);
+        }
+
+        /**
+         * Hands the buffered events to the subscriber, one at a time, while there is demand.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (this) {
+                    if (cancelled) {
+                        draining = false;
+                        return;
+                    }
+                    if (count == 0 && completed) {
+                        cancelled = true;
+                        draining = false;
+                        break;
+                    }
+                    if (count == 0 || demand == 0) {
+                        draining = false;
+                        return;
+                    }
+                    current.set(buffer[head]);
+                    head = (head + 1) % buffer.length;
+                    count--;
+                    if (demand != Long.MAX_VALUE) demand--;
+                    if (policy == OverflowPolicy.BLOCK) notifyAll();
+                }
+                try {
+                    subscriber.onNext(current);
+                } catch (Throwable t) {
+                    cancel();
+                    subscriber.onError(t);
+                    return;
+                }
+            }
+            subscriber.onComplete();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "subscription(" + policy + ", " + count + "/" + buffer.length + " buffered, " + dropped + " dropped)";
+        }
+    }
+}
@@ -0,0 +1,750 @@
+package bguspl.set;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * The history of all the games played, for analysing them in bulk: a row for every game and a row for every claimed
+ * set, kept in a directory of append-only column files (a file per column).
+ *
+ * Every column is kept as an array of the narrowest primitive type that fits it (a claim takes 7 bytes), so a query
+ * maps the files and scans them in place, with nothing to decode. The game of the claims is run length encoded (the
+ * claims of a game are appended together), so it takes 16 bytes a game instead of 4 bytes a claim, and a query skips
+ * the claims of the games it filters out a run at a time. The claims are scanned in parallel, in ranges of a million
+ * claims, each summed into primitive arrays indexed by group.
+ *
+ * The games are numbered in the order they were appended. A crash while appending can leave the columns of different
+ * lengths, so they are cut back to the last complete game when the history is opened.
+ */
+public class GameHistory {
+
+    /**
+     * The number of claims a query scans in a single task.
+     */
+    private static final int TASK_ROWS = 1 << 20;
+
+    private static final long MILLIS_PER_HOUR = 3_600_000;
+
+    /**
+     * What to group the rows of a query by.
+     */
+    public enum GroupBy {
+        ALL,    // a single group
+        PLAYER, // the player id (claims only)
+        CONFIG, // the configuration key (see configKey)
+        HOUR    // the hour the game started in (hours since the epoch)
+    }
+
+    /**
+     * The games columns: the configuration key, the hour the game started in, its length in millis, the number of
+     * players, the number of reshuffles and the sum of the sets that were left in the game at every reshuffle.
+     */
+    private final Column gameConfig;
+    private final Column gameHour;
+    private final Column gameMillis;
+    private final Column gamePlayers;
+    private final Column gameReshuffles;
+    private final Column gameSetsLeft;
+
+    /**
+     * The claims columns: the player (short), the reaction time in micros (int), whether the set was legal (byte), and
+     * the runs of claims of the same game (game, count).
+     */
+    private final Column claimPlayer;
+    private final Column claimReaction;
+    private final Column claimLegal;
+    private final Column claimRuns;
+
+    /**
+     * The runs of the claims column in memory (guarded by this): the game of every run, and the row after its end.
+     */
+    private int[] runGames = new int[16];
+    private long[] runEnds = new long[16];
+    private int runs = 0;
+
+    private int games;
+    private long claims;
+
+    /**
+     * Opens the history in a directory (created if needed).
+     */
+    public GameHistory(String directory) throws IOException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        gameConfig = new Column(dir, "game-config.i32", 4);
+        gameHour = new Column(dir, "game-hour.i32", 4);
+        gameMillis = new Column(dir, "game-millis.i32", 4);
+        gamePlayers = new Column(dir, "game-players.i32", 4);
+        gameReshuffles = new Column(dir, "game-reshuffles.i32", 4);
+        gameSetsLeft = new Column(dir, "game-sets-left.i32", 4);
+        claimPlayer = new Column(dir, "claim-player.i16", 2);
+        claimReaction = new Column(dir, "claim-reaction.i32", 4);
+        claimLegal = new Column(dir, "claim-legal.i8", 1);
+        claimRuns = new Column(dir, "claim-game.rle", 8);
+        recover();
+    }
+
+    /**
+     * Cuts the columns back to the last complete game (they are appended in the order: claims, runs, games).
+     */
+    private void recover() throws IOException {
+        games = (int) min(gameConfig, gameHour, gameMillis, gamePlayers, gameReshuffles, gameSetsLeft);
+        long claimRows = min(claimPlayer, claimReaction, claimLegal);
+        ByteBuffer runsBuffer = claimRuns.map(0, (int) claimRuns.rows());
+        long end = 0;
+        for (int run = 0; run < claimRuns.rows(); run++) {
+            int game = runsBuffer.getInt(run * 8);
+            int count = runsBuffer.getInt(run * 8 + 4);
+            if (game >= games) break;
+            if (end + count > claimRows) {
+                games = game;
+                break;
+            }
+            end += count;
+            addRun(game, end);
+        }
+        claims = end;
+        for (Column column : new Column[]{gameConfig, gameHour, gameMillis, gamePlayers, gameReshuffles, gameSetsLeft})
+            column.truncate(games);
+        for (Column column : new Column[]{claimPlayer, claimReaction, claimLegal})
+            column.truncate(claims);
+        claimRuns.truncate(runs);
+    }
+
+    private static long min(Column... columns) {
+        long min = Long.MAX_VALUE;
+        for (Column column : columns)
+            min = Math.min(min, column.rows());
+        return min;
+    }
+
+    private void addRun(int game, long end) {
+        if (runs == runGames.length) {
+            runGames = Arrays.copyOf(runGames, runs * 2);
+            runEnds = Arrays.copyOf(runEnds, runs * 2);
+        }
+        runGames[runs] = game;
+        runEnds[runs] = end;
+        runs++;
+    }
+
+    /**
+     * @return - a key of the settings that change how a game is played, to group games of the same settings by.
+     */
+    public static int configKey(Config config) {
+        return Objects.hash(config.featureCount, config.featureSize, config.deckSize, config.tableSize,
+                config.humanPlayers, config.computerPlayers, config.turnTimeoutMillis, config.penaltyFreezeMillis,
+                config.pointFreezeMillis, config.tableDelayMillis, config.singleThreaded);
+    }
+
+    /**
+     * Appends a game and its claims.
+     *
+     * @param startMillis     - when the game started (System.currentTimeMillis).
+     * @param setsLeft        - the sum of the sets that were left in the game at every reshuffle.
+     * @param claimPlayers    - the player of each claim.
+     * @param reactionMicros  - the time from the last card placed on the table to each claim, in micros.
+     * @param legal           - whether each claim was a legal set.
+     * @param count           - the number of claims (the arrays may be longer).
+     * @return - the number of the game.
+     */
+    public synchronized int append(int configKey, long startMillis, int millis, int players, int reshuffles,
+                                   int setsLeft, short[] claimPlayers, int[] reactionMicros, boolean[] legal, int count)
+            throws IOException {
+        int game = games;
+        for (int i = 0; i < count; i++) {
+            claimPlayer.putShort(claimPlayers[i]);
+            claimReaction.putInt(reactionMicros[i]);
+            claimLegal.putByte(legal[i] ? 1 : 0);
+        }
+        if (count > 0) {
+            claimRuns.putInt(game);
+            claimRuns.putInt(count);
+            addRun(game, claims + count);
+        }
+        gameConfig.putInt(configKey);
+        gameHour.putInt((int) (startMillis / MILLIS_PER_HOUR));
+        gameMillis.putInt(millis);
+        gamePlayers.putInt(players);
+        gameReshuffles.putInt(reshuffles);
+        gameSetsLeft.putInt(setsLeft);
+        for (Column column : columns())
+            column.flush();
+        claims += count;
+        games++;
+        return game;
+    }
+
+    private Column[] columns() {
+        return new Column[]{claimPlayer, claimReaction, claimLegal, claimRuns,
+                gameConfig, gameHour, gameMillis, gamePlayers, gameReshuffles, gameSetsLeft};
+    }
+
+    public synchronized int games() {
+        return games;
+    }
+
+    public synchronized long claims() {
+        return claims;
+    }
+
+    public void close() throws IOException {
+        for (Column column : columns())
+            column.close();
+    }
+
+    /**
+     * The rows a query selects (all of them unless narrowed).
+     */
+    public static class Filter {
+
+        private int player = -1;
+        private boolean anyConfig = true;
+        private int config;
+        private long fromHour = Long.MIN_VALUE;
+        private long toHour = Long.MAX_VALUE;
+        private int fromGame = 0;
+        private int toGame = Integer.MAX_VALUE;
+
+        public static Filter all() {
+            return new Filter();
+        }
+
+        /**
+         * Only the claims of a player.
+         */
+        public Filter player(int player) {
+            this.player = player;
+            return this;
+        }
+
+        /**
+         * Only the games of a configuration key (see configKey).
+         */
+        public Filter config(int configKey) {
+            anyConfig = false;
+            config = configKey;
+            return this;
+        }
+
+        /**
+         * Only the games that started from an hour (inclusive) to an hour (exclusive), in hours since the epoch.
+         */
+        public Filter hours(long fromHour, long toHour) {
+            this.fromHour = fromHour;
+            this.toHour = toHour;
+            return this;
+        }
+
+        /**
+         * Only the games from a game number (inclusive) to a game number (exclusive).
+         */
+        public Filter games(int fromGame, int toGame) {
+            this.fromGame = fromGame;
+            this.toGame = toGame;
+            return this;
+        }
+    }
+
+    /**
+     * The claims of a query, by group: the number of claims, how many of them were penalized, and the sum of their
+     * reaction times.
+     */
+    public static class ClaimStats {
+
+        public final GroupBy groupBy;
+        public final long[] keys;
+        public final long[] claims;
+        public final long[] penalties;
+        public final long[] reactionMicros;
+
+        private ClaimStats(GroupBy groupBy, long[] keys, long[] claims, long[] penalties, long[] reactionMicros) {
+            this.groupBy = groupBy;
+            this.keys = keys;
+            this.claims = claims;
+            this.penalties = penalties;
+            this.reactionMicros = reactionMicros;
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        public double penaltyRate(int group) {
+            return claims[group] == 0 ? 0 : (double) penalties[group] / claims[group];
+        }
+
+        public double meanReactionMillis(int group) {
+            return claims[group] == 0 ? 0 : reactionMicros[group] / 1000.0 / claims[group];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format("%12s %12s %9s %14s%n",
+                    groupBy.name().toLowerCase(), "claims", "penalties", "reaction (ms)"));
+            for (int group = 0; group < size(); group++)
+                sb.append(String.format("%12d %12d %8.1f%% %14.1f%n", keys[group], claims[group],
+                        100 * penaltyRate(group), meanReactionMillis(group)));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The games of a query, by group: the number of games, and the sums of their lengths, of their reshuffles and of
+     * the sets that were left at the reshuffles.
+     */
+    public static class GameStats {
+
+        public final GroupBy groupBy;
+        public final long[] keys;
+        public final long[] games;
+        public final long[] millis;
+        public final long[] reshuffles;
+        public final long[] setsLeft;
+
+        private GameStats(GroupBy groupBy, long[] keys, long[] games, long[] millis, long[] reshuffles, long[] setsLeft) {
+            this.groupBy = groupBy;
+            this.keys = keys;
+            this.games = games;
+            this.millis = millis;
+            this.reshuffles = reshuffles;
+            this.setsLeft = setsLeft;
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        public double meanSeconds(int group) {
+            return games[group] == 0 ? 0 : millis[group] / 1000.0 / games[group];
+        }
+
+        public double meanSetsLeftAtReshuffle(int group) {
+            return reshuffles[group] == 0 ? 0 : (double) setsLeft[group] / reshuffles[group];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format("%12s %10s %12s %10s %10s%n",
+                    groupBy.name().toLowerCase(), "games", "length (s)", "reshuffles", "sets left"));
+            for (int group = 0; group < size(); group++)
+                sb.append(String.format("%12d %10d %12.1f %10d %10.1f%n", keys[group], games[group],
+                        meanSeconds(group), reshuffles[group], meanSetsLeftAtReshuffle(group)));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The games selected by a filter, and the group of each (-1 if not selected).
+     */
+    private static class Groups {
+
+        final long[] keys;
+        final int[] gameGroups;
+
+        Groups(long[] keys, int[] gameGroups) {
+            this.keys = keys;
+            this.gameGroups = gameGroups;
+        }
+    }
+
+    /**
+     * Groups the games (PLAYER puts all the selected games in group 0, as it groups the claims within them).
+     */
+    private Groups groupGames(int games, GroupBy groupBy, Filter filter) throws IOException {
+        IntBuffer configs = gameConfig.map(0, games).asIntBuffer();
+        IntBuffer hours = gameHour.map(0, games).asIntBuffer();
+        int[] gameGroups = new int[games];
+        long[] gameKeys = new long[games];
+        int selected = 0;
+        for (int game = 0; game < games; game++) {
+            int config = configs.get(game);
+            int hour = hours.get(game);
+            if (game < filter.fromGame || game >= filter.toGame || !filter.anyConfig && config != filter.config
+                    || hour < filter.fromHour || hour >= filter.toHour) {
+                gameGroups[game] = -1;
+                continue;
+            }
+            long key = groupBy == GroupBy.CONFIG ? config : groupBy == GroupBy.HOUR ? hour : 0;
+            gameKeys[game] = key;
+            gameGroups[game] = 0;
+            selected++;
+        }
+
+        long[] keys = new long[selected];
+        for (int game = 0, i = 0; game < games; game++)
+            if (gameGroups[game] >= 0) keys[i++] = gameKeys[game];
+        Arrays.sort(keys);
+        int distinct = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (i == 0 || keys[i] != keys[i - 1]) keys[distinct++] = keys[i];
+        keys = Arrays.copyOf(keys, distinct);
+        for (int game = 0; game < games; game++)
+            if (gameGroups[game] >= 0) gameGroups[game] = Arrays.binarySearch(keys, gameKeys[game]);
+        return new Groups(keys, gameGroups);
+    }
+
+    /**
+     * @return - the claims selected by the filter, by group.
+     */
+    public ClaimStats claims(GroupBy groupBy, Filter filter) throws IOException {
+        int games;
+        long claims;
+        int[] runGames;
+        long[] runEnds;
+        synchronized (this) {
+            games = this.games;
+            claims = this.claims;
+            runGames = Arrays.copyOf(this.runGames, runs);
+            runEnds = Arrays.copyOf(this.runEnds, runs);
+        }
+        Groups groups = groupGames(games, groupBy, filter);
+        boolean byPlayer = groupBy == GroupBy.PLAYER;
+        int groupCount = groups.keys.length;
+        if (byPlayer) {
+            IntBuffer players = gamePlayers.map(0, games).asIntBuffer();
+            groupCount = 0;
+            for (int game = 0; game < games; game++)
+                if (groups.gameGroups[game] >= 0) groupCount = Math.max(groupCount, players.get(game));
+        }
+        int groupsCount = groupCount;
+
+        int tasks = (int) ((claims + TASK_ROWS - 1) / TASK_ROWS);
+        long[][] totals = IntStream.range(0, tasks).parallel()
+                .mapToObj(task -> scanClaims(task, claims, runGames, runEnds, groups.gameGroups, byPlayer, filter.player, groupsCount))
+                .reduce(new long[3][groupsCount], GameHistory::add);
+
+        if (!byPlayer)
+            return new ClaimStats(groupBy, groups.keys, totals[0], totals[1], totals[2]);
+        int[] players = IntStream.range(0, groupsCount).filter(player -> totals[0][player] > 0).toArray();
+        return new ClaimStats(groupBy, IntStream.of(players).asLongStream().toArray(), pick(totals[0], players),
+                pick(totals[1], players), pick(totals[2], players));
+    }
+
+    /**
+     * Sums a range of TASK_ROWS claims into arrays by group: claims, penalties and reaction micros.
+     */
+    private long[][] scanClaims(int task, long claims, int[] runGames, long[] runEnds, int[] gameGroups,
+                                boolean byPlayer, int playerFilter, int groups) {
+        long[] count = new long[groups];
+        long[] penalties = new long[groups];
+        long[] reaction = new long[groups];
+        long from = (long) task * TASK_ROWS;
+        int rows = (int) Math.min(TASK_ROWS, claims - from);
+        ShortBuffer players;
+        IntBuffer reactions;
+        ByteBuffer legal;
+        try {
+            players = claimPlayer.map(from, rows).asShortBuffer();
+            reactions = claimReaction.map(from, rows).asIntBuffer();
+            legal = claimLegal.map(from, rows);
+        } catch (IOException e) {
+            throw new IllegalStateException("error reading the game history: " + e.getMessage(), e);
+        }
+
+        // the first run that ends after the range starts
+        int run = Arrays.binarySearch(runEnds, from);
+        run = run >= 0 ? run + 1 : -run - 1;
+        for (int row = 0; row < rows; run++) {
+            int end = (int) Math.min(rows, runEnds[run] - from);
+            int group = runGames[run] < gameGroups.length ? gameGroups[runGames[run]] : -1;
+            if (group < 0) {
+                row = end;
+                continue;
+            }
+            for (; row < end; row++) {
+                int player = players.get(row);
+                if (playerFilter >= 0 && player != playerFilter) continue;
+                int g = byPlayer ? player : group;
+                count[g]++;
+                penalties[g] += 1 - legal.get(row);
+                reaction[g] += reactions.get(row);
+            }
+        }
+        return new long[][]{count, penalties, reaction};
+    }
+
+    private static long[][] add(long[][] a, long[][] b) {
+        long[][] sum = new long[a.length][];
+        for (int i = 0; i < a.length; i++) {
+            sum[i] = new long[a[i].length];
+            for (int j = 0; j < a[i].length; j++)
+                sum[i][j] = a[i][j] + b[i][j];
+        }
+        return sum;
+    }
+
+    private static long[] pick(long[] values, int[] indices) {
+        long[] picked = new long[indices.length];
+        for (int i = 0; i < indices.length; i++)
+            picked[i] = values[indices[i]];
+        return picked;
+    }
+
+    /**
+     * @return - the games selected by the filter, by group.
+     * @throws IllegalArgumentException - if grouped by player (a game has several players).
+     */
+    public GameStats games(GroupBy groupBy, Filter filter) throws IOException {
+        if (groupBy == GroupBy.PLAYER) throw new IllegalArgumentException("games cannot be grouped by player");
+        int games = games();
+        Groups groups = groupGames(games, groupBy, filter);
+        int groupCount = groups.keys.length;
+        long[] count = new long[groupCount];
+        long[] millis = new long[groupCount];
+        long[] reshuffles = new long[groupCount];
+        long[] setsLeft = new long[groupCount];
+        IntBuffer millisColumn = gameMillis.map(0, games).asIntBuffer();
+        IntBuffer reshufflesColumn = gameReshuffles.map(0, games).asIntBuffer();
+        IntBuffer setsLeftColumn = gameSetsLeft.map(0, games).asIntBuffer();
+        for (int game = 0; game < games; game++) {
+            int group = groups.gameGroups[game];
+            if (group < 0) continue;
+            count[group]++;
+            millis[group] += millisColumn.get(game);
+            reshuffles[group] += reshufflesColumn.get(game);
+            setsLeft[group] += setsLeftColumn.get(game);
+        }
+        return new GameStats(groupBy, groups.keys, count, millis, reshuffles, setsLeft);
+    }
+
+    /**
+     * An append-only file of fixed width values, written through a buffer and read by mapping it.
+     */
+    private static class Column {
+
+        private final Path path;
+        private final FileChannel channel;
+        private final int width;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+        /**
+         * The bytes written to the file (not counting the buffer).
+         */
+        private long written;
+
+        Column(Path dir, String name, int width) throws IOException {
+            path = dir.resolve(name);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.width = width;
+            written = channel.size();
+        }
+
+        long rows() {
+            return (written + buffer.position()) / width;
+        }
+
+        void putByte(int value) throws IOException {
+            if (buffer.remaining() < 1) flush();
+            buffer.put((byte) value);
+        }
+
+        void putShort(short value) throws IOException {
+            if (buffer.remaining() < 2) flush();
+            buffer.putShort(value);
+        }
+
+        void putInt(int value) throws IOException {
+            if (buffer.remaining() < 4) flush();
+            buffer.putInt(value);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                written += channel.write(buffer, written);
+            buffer.clear();
+        }
+
+        void truncate(long rows) throws IOException {
+            flush();
+            channel.truncate(rows * width);
+            written = rows * width;
+        }
+
+        /**
+         * @return - the rows from a row, mapped read only (only rows that were flushed).
+         */
+        MappedByteBuffer map(long from, int rows) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, from * width, (long) rows * width);
+        }
+
+        void close() throws IOException {
+            flush();
+            channel.close();
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    public Recorder recorder(Logger logger, Config config) {
+        return new Recorder(logger, config);
+    }
+
+    /**
+     * Collects the claims and the reshuffles of a game from the game events, and appends the game when it is over.
+     *
+     * The reaction time of a claim is the time from the last card placed on the table until the claim; a claim that
+     * is cancelled (see Player.cancelClaim) gets no verdict, so it is not recorded.
+     */
+    public class Recorder implements Flow.Subscriber<GameEvent> {
+
+        private final Logger logger;
+        private final Config config;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private long startNanos = -1;
+        private long startMillis;
+        private long lastPlacedNanos;
+        private final long[] claimNanos;
+
+        private short[] claimPlayers = new short[64];
+        private int[] reactionMicros = new int[64];
+        private boolean[] legal = new boolean[64];
+        private int claimCount = 0;
+
+        private int reshuffles = 0;
+        private int setsLeft = 0;
+        private int winners = 0;
+
+        private Recorder(Logger logger, Config config) {
+            this.logger = logger;
+            this.config = config;
+            claimNanos = new long[config.players];
+            Arrays.fill(claimNanos, -1);
+        }
+
+        /**
+         * @return - the types of the events the recorder needs (to subscribe to only them).
+         */
+        public Set<GameEvent.Type> types() {
+            return EnumSet.of(GameEvent.Type.CARD_PLACED, GameEvent.Type.SET_CLAIMED, GameEvent.Type.POINT,
+                    GameEvent.Type.PENALTY, GameEvent.Type.RESHUFFLE, GameEvent.Type.WINNER);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(GameEvent event) {
+            if (startNanos < 0) {
+                startNanos = event.time();
+                startMillis = System.currentTimeMillis() - (System.nanoTime() - startNanos) / 1_000_000;
+                lastPlacedNanos = startNanos;
+            }
+            switch (event.type()) {
+                case CARD_PLACED:
+                    lastPlacedNanos = event.time();
+                    break;
+                case SET_CLAIMED:
+                    claimNanos[event.player()] = event.time();
+                    break;
+                case POINT:
+                case PENALTY:
+                    verdict(event.player(), event.type() == GameEvent.Type.POINT);
+                    break;
+                case RESHUFFLE:
+                    reshuffles++;
+                    setsLeft += event.value();
+                    break;
+                case WINNER:
+                    if (++winners == event.value()) recordGame(event.time());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void verdict(int player, boolean point) {
+            long claimed = claimNanos[player];
+            if (claimed < 0) return;
+            claimNanos[player] = -1;
+            if (claimCount == legal.length) {
+                claimPlayers = Arrays.copyOf(claimPlayers, claimCount * 2);
+                reactionMicros = Arrays.copyOf(reactionMicros, claimCount * 2);
+                legal = Arrays.copyOf(legal, claimCount * 2);
+            }
+            claimPlayers[claimCount] = (short) player;
+            reactionMicros[claimCount] = (int) Math.min(Integer.MAX_VALUE, Math.max(0, claimed - lastPlacedNanos) / 1000);
+            legal[claimCount] = point;
+            claimCount++;
+        }
+
+        private void recordGame(long endNanos) {
+            try {
+                int game = append(configKey(config), startMillis, (int) ((endNanos - startNanos) / 1_000_000),
+                        config.players, reshuffles, setsLeft, claimPlayers, reactionMicros, legal, claimCount);
+                logger.severe("game history: game " + game + " recorded with " + claimCount + " claims");
+            } catch (IOException e) {
+                logger.severe("error recording the game in the game history: " + e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            logger.severe("game history recorder failed: " + throwable);
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+
+        /**
+         * Waits until the game events end (and the game, if it was over, is recorded).
+         */
+        public void awaitCompletion() throws InterruptedException {
+            done.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Prints the claims and the games of a history.
+     *
+     * @param args - the directory of the history [all|player|config|hour [player]].
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: GameHistory directory [all|player|config|hour [player]]");
+            return;
+        }
+        GroupBy groupBy = args.length > 1 ? GroupBy.valueOf(args[1].toUpperCase()) : GroupBy.ALL;
+        Filter filter = args.length > 2 ? Filter.all().player(Integer.parseInt(args[2])) : Filter.all();
+        GameHistory history = new GameHistory(args[0]);
+        try {
+            long start = System.nanoTime();
+            ClaimStats claims = history.claims(groupBy, filter);
+            long scanned = System.nanoTime();
+            System.out.print(claims);
+            System.out.printf("(%d claims of %d games scanned in %d ms)%n%n", history.claims(), history.games(),
+                    (scanned - start) / 1_000_000);
+            if (groupBy != GroupBy.PLAYER)
+                System.out.print(history.games(groupBy, filter));
+        } finally {
+            history.close();
+        }
+    }
+}
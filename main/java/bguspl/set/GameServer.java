@@ -0,0 +1,310 @@
+package bguspl.set;
+
+import bguspl.set.ex.Player;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import static bguspl.set.SpectatorStream.*;
+
+/**
+ * Serves the game over TCP on the loopback interface, so human players can play from network clients (and bots can
+ * load the game, see LoadClient). A single thread runs a Selector over all the connections.
+ *
+ * The protocol is a stream of fixed size messages of MESSAGE_BYTES bytes (big endian), encoded like the messages of
+ * SpectatorStream. A client sends JOIN to play as a human player and KEY for every key press, which goes to that
+ * player's keyPressed. The server sends every client the spectator stream, starting from its latest keyframe.
+ *
+ * Each connection is a subscriber of the stream: once per round, the server thread copies the messages it has not
+ * sent yet into the connection's buffer and writes the buffer, so nothing is allocated per message. A client that
+ * does not keep up skips ahead to a newer keyframe, and the game never waits for it.
+ */
+public class GameServer implements Runnable {
+
+    /**
+     * Client message types. JOIN: argument = player id (the server answers with the same JOIN and value = table size,
+     * or with REJECT). KEY: argument = slot. (The server's other messages are the ones of SpectatorStream.)
+     */
+    public static final int JOIN = 1;
+    public static final int KEY = 2;
+    public static final int REJECT = 3;
+
+    public static final int MESSAGE_BYTES = 8;
+
+    /**
+     * The size of the output buffer of a connection.
+     */
+    private static final int BUFFER_BYTES = MESSAGE_BYTES * 4096;
+
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final Logger logger;
+    private final Config config;
+    private final SpectatorStream stream;
+    private final Player[] players;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private ThreadLogger serverThread;
+    private volatile boolean terminate;
+
+    /**
+     * Set when a game thread woke the selector up, so the next updates until it runs do not wake it up again.
+     */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    /**
+     * The open connections, and the connection playing as each player (server thread only).
+     */
+    private final List<Connection> connections = new ArrayList<>();
+    private final Connection[] playerConnections;
+
+    /**
+     * Opens the server socket (the server thread is started by start()).
+     *
+     * @param stream  - the stream of the game's ui updates.
+     * @param players - the players (filled in later by the caller).
+     */
+    public GameServer(Logger logger, Config config, SpectatorStream stream, Player[] players) throws IOException {
+        this.logger = logger;
+        this.config = config;
+        this.stream = stream;
+        this.players = players;
+        playerConnections = new Connection[config.players];
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.serverPort), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        stream.setListener(this::wakeup);
+    }
+
+    /**
+     * Starts the server thread.
+     */
+    public void start() {
+        serverThread = new ThreadLogger(this, "server", logger);
+        serverThread.setDaemon(true);
+        serverThread.startWithLog();
+    }
+
+    @Override
+    public void run() {
+        logger.severe("game server listening on port " + serverChannel.socket().getLocalPort());
+        try {
+            while (!terminate) {
+                selector.select();
+                wakeupPending.set(false);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept();
+                    else if (key.isReadable()) read((Connection) key.attachment());
+                }
+                flushAll();
+            }
+        } catch (IOException e) {
+            logger.severe("game server error: " + e.getMessage());
+        } finally {
+            // (send the last updates, e.g. the winners, before closing)
+            flushAll();
+            for (Connection connection : connections)
+                close(connection);
+            try {
+                selector.close();
+                serverChannel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+        }
+    }
+
+    private void read(Connection connection) {
+        try {
+            if (connection.channel.read(connection.in) < 0) {
+                connection.closed = true;
+                return;
+            }
+        } catch (IOException e) {
+            connection.closed = true;
+            return;
+        }
+        ByteBuffer in = connection.in.flip();
+        while (in.remaining() >= MESSAGE_BYTES)
+            receive(connection, in.getLong());
+        in.compact();
+    }
+
+    private void receive(Connection connection, long message) {
+        int argument = argument(message);
+        switch (type(message)) {
+            case JOIN:
+                join(connection, argument);
+                break;
+            case KEY:
+                if (connection.player >= 0 && argument < config.tableSize)
+                    players[connection.player].keyPressed(argument);
+                break;
+            default:
+                logger.severe("game server: unknown message type " + type(message) + ", closing the connection");
+                connection.closed = true;
+        }
+    }
+
+    /**
+     * Lets a connection play as a human player, unless it already plays or the player is taken.
+     */
+    private void join(Connection connection, int player) {
+        if (connection.player < 0 && player < config.humanPlayers && players[player] != null
+                && playerConnections[player] == null) {
+            connection.player = player;
+            playerConnections[player] = connection;
+            players[player].setRemote(true);
+            send(connection, message(JOIN, player, config.tableSize));
+            logger.severe("player " + (player + 1) + " joined from " + connection.channel.socket().getRemoteSocketAddress());
+        } else
+            send(connection, message(REJECT, player, 0));
+    }
+
+    /**
+     * Sends a reply to a connection (closing it if it does not even read its replies).
+     */
+    private void send(Connection connection, long message) {
+        if (!connection.visit(message)) {
+            logger.severe("game server: closing a connection that does not read");
+            connection.closed = true;
+        }
+    }
+
+    /**
+     * Writes the new messages of the stream to each connection, and closes the connections that are done.
+     */
+    private void flushAll() {
+        for (int i = 0; i < connections.size(); i++) {
+            Connection connection = connections.get(i);
+            if (!connection.closed) {
+                connection.subscriber.poll(connection, Integer.MAX_VALUE);
+                flush(connection);
+            }
+            if (connection.closed) {
+                close(connection);
+                // (the order of the connections does not matter)
+                connections.set(i, connections.get(connections.size() - 1));
+                connections.remove(connections.size() - 1);
+                i--;
+            }
+        }
+    }
+
+    private void flush(Connection connection) {
+        ByteBuffer out = connection.out;
+        if (out.position() == 0) return;
+        try {
+            connection.channel.write(out.flip());
+        } catch (IOException e) {
+            connection.closed = true;
+        }
+        out.compact();
+        // when the socket cannot take it all, write the rest as soon as it can
+        boolean pending = out.position() > 0;
+        if (pending != connection.writing && connection.key.isValid()) {
+            connection.writing = pending;
+            connection.key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    private void close(Connection connection) {
+        connection.closed = true;
+        if (connection.key != null) connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {}
+        int player = connection.player;
+        if (player >= 0 && playerConnections[player] == connection) {
+            playerConnections[player] = null;
+            players[player].setRemote(false);
+            logger.severe("player " + (player + 1) + " disconnected");
+        }
+    }
+
+    /**
+     * Wakes the server thread up to send the messages published (called by the game threads).
+     */
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    /**
+     * Stops the server thread, after it sends what was already published (e.g. the winners).
+     */
+    public void terminate() {
+        terminate = true;
+        selector.wakeup();
+        if (serverThread != null) {
+            try {
+                serverThread.join(1000);
+            } catch (InterruptedException ignored) {}
+        }
+    }
+
+    /**
+     * A client connection (server thread only).
+     */
+    private class Connection implements SpectatorStream.Visitor {
+
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(MESSAGE_BYTES * 256);
+        final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        final SpectatorStream.Subscriber subscriber = stream.subscribe();
+
+        /**
+         * The player this connection plays as (-1 if it only watches).
+         */
+        int player = -1;
+
+        /**
+         * True iff the connection waits for the socket to write the rest of its buffer.
+         */
+        boolean writing = false;
+
+        boolean closed = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Buffers a message, if there is room for it.
+         */
+        @Override
+        public boolean visit(long message) {
+            if (out.remaining() < MESSAGE_BYTES) return false;
+            out.putLong(message);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package bguspl.set;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The cumulative results of the players of all the games played, by player name, kept in a memory-mapped file.
+ *
+ * Every player is a fixed size record in the file. The records are also the nodes of a treap (a binary search tree
+ * balanced by random priorities) ordered by rank: more points first, then more wins, then older records. Every node
+ * keeps the size of its subtree, so the rank of a player and the top K players take O(log n) (plus K) steps. The
+ * records are found by name through a hash index that is rebuilt in memory when the file is opened, so a player takes
+ * 64 bytes on disk (the file grows by doubling) and 8 to 16 bytes of heap.
+ *
+ * Only the totals of the records are trusted when the file is opened: the tree is rebuilt from them (sorted by rank,
+ * in O(n log n)), so a process that dies in the middle of a record leaves no broken links behind, at worst a game
+ * that was recorded for some of its players.
+ */
+public class Leaderboard {
+
+    private static final int MAGIC = 0x5345544C;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 64;
+    private static final int RECORD_BYTES = 64;
+
+    /**
+     * Header fields (offsets in the header).
+     */
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_COUNT = 8;
+    private static final int HEADER_ROOT = 12;
+
+    /**
+     * Record fields (offsets in a record): the name (its length in bytes, then its UTF-8 bytes), the totals, and the
+     * tree links of the record.
+     */
+    private static final int NAME = 0;
+    private static final int NAME_BYTES = 31;
+    private static final int POINTS = 32;
+    private static final int WINS = 40;
+    private static final int GAMES = 44;
+    private static final int LEFT = 48;
+    private static final int RIGHT = 52;
+    private static final int SIZE = 56;
+    private static final int PRIORITY = 60;
+
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * A player's totals, and rank (1 for the first).
+     */
+    public static class Entry {
+
+        public final String name;
+        public final int rank;
+        public final long points;
+        public final int wins;
+        public final int games;
+
+        Entry(String name, int rank, long points, int wins, int games) {
+            this.name = name;
+            this.rank = rank;
+            this.points = points;
+            this.wins = wins;
+            this.games = games;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + rank + " " + name + ": " + points + " points, " + wins + " wins in " + games + " games";
+        }
+    }
+
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+    private int capacity;
+    private int count;
+    private int root;
+
+    /**
+     * The hash index of the records by name: record id + 1 (0 for an empty entry), with linear probing.
+     */
+    private int[] index;
+
+    private final SplittableRandom random = new SplittableRandom();
+
+    /**
+     * The nodes before and after the key of the last split.
+     */
+    private int splitBefore;
+    private int splitAfter;
+
+    /**
+     * Opens the leaderboard file (creating it if needed).
+     *
+     * @throws IOException - if the file cannot be opened, or is not a leaderboard file.
+     */
+    public Leaderboard(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        if (fileSize == 0) {
+            map(INITIAL_CAPACITY);
+            map.putInt(HEADER_MAGIC, MAGIC);
+            map.putInt(HEADER_VERSION, VERSION);
+            count = 0;
+            root = NONE;
+            writeHeader();
+        } else {
+            map((int) Math.max(1, (fileSize - HEADER_BYTES) / RECORD_BYTES));
+            if (map.getInt(HEADER_MAGIC) != MAGIC || map.getInt(HEADER_VERSION) != VERSION) {
+                channel.close();
+                throw new IOException(fileName + " is not a leaderboard file");
+            }
+            count = Math.min(map.getInt(HEADER_COUNT), capacity);
+            rebuildTree();
+        }
+        rebuildIndex(Integer.highestOneBit(Math.max(16, 4 * count)));
+    }
+
+    /**
+     * Rebuilds the links of the tree from the records: sorts them by rank, and builds the treap of their priorities
+     * over that order with a stack (the right spine of the tree built so far).
+     */
+    private void rebuildTree() {
+        Integer[] sorted = new Integer[count];
+        for (int id = 0; id < count; id++)
+            sorted[id] = id;
+        Arrays.sort(sorted, (a, b) -> a.equals(b) ? 0 : before(a, b) ? -1 : 1);
+        int[] spine = new int[count];
+        int top = 0;
+        for (int id : sorted) {
+            int priority = map.getInt(offset(id) + PRIORITY);
+            int last = NONE;
+            while (top > 0 && map.getInt(offset(spine[top - 1]) + PRIORITY) < priority)
+                last = spine[--top];
+            map.putInt(offset(id) + LEFT, last);
+            map.putInt(offset(id) + RIGHT, NONE);
+            if (top > 0) map.putInt(offset(spine[top - 1]) + RIGHT, id);
+            spine[top++] = id;
+        }
+        root = top > 0 ? spine[0] : NONE;
+        updateSizes(root);
+        writeHeader();
+    }
+
+    /**
+     * @return - the size of the subtree of node, after updating the sizes in it.
+     */
+    private int updateSizes(int node) {
+        if (node == NONE) return 0;
+        int size = updateSizes(left(node)) + updateSizes(right(node)) + 1;
+        map.putInt(offset(node) + SIZE, size);
+        return size;
+    }
+
+    private void map(int capacity) throws IOException {
+        this.capacity = capacity;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * RECORD_BYTES);
+    }
+
+    private void writeHeader() {
+        map.putInt(HEADER_COUNT, count);
+        map.putInt(HEADER_ROOT, root);
+    }
+
+    /**
+     * Adds the results of a game.
+     *
+     * @param names   - the names of the players.
+     * @param points  - the points of each player in the game.
+     * @param winners - the ids of the winners.
+     * @throws IllegalArgumentException - if a name is too long (nothing is recorded then).
+     */
+    public synchronized void record(String[] names, int[] points, int[] winners) throws IOException {
+        byte[][] encoded = new byte[names.length][];
+        for (int player = 0; player < names.length; player++)
+            encoded[player] = encode(names[player]);
+        for (int player = 0; player < names.length; player++) {
+            int id = find(encoded[player]);
+            if (id == NONE)
+                id = add(encoded[player]);
+            else
+                root = remove(root, id);
+            map.putLong(offset(id) + POINTS, map.getLong(offset(id) + POINTS) + points[player]);
+            map.putInt(offset(id) + GAMES, map.getInt(offset(id) + GAMES) + 1);
+            for (int winner : winners)
+                if (winner == player)
+                    map.putInt(offset(id) + WINS, map.getInt(offset(id) + WINS) + 1);
+            insert(id);
+        }
+        writeHeader();
+    }
+
+    /**
+     * @return - the totals of a player (null if the player never played).
+     */
+    public synchronized Entry get(String name) {
+        if (name.getBytes(StandardCharsets.UTF_8).length > NAME_BYTES) return null;
+        int id = find(encode(name));
+        return id == NONE ? null : entry(id, rank(id));
+    }
+
+    /**
+     * @return - the first k players, in rank order.
+     */
+    public synchronized List<Entry> top(int k) {
+        List<Entry> entries = new ArrayList<>(Math.min(k, count));
+        collect(root, k, entries);
+        return entries;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Saves the leaderboard to the disk and closes the file.
+     */
+    public synchronized void close() throws IOException {
+        writeHeader();
+        map.force();
+        channel.close();
+    }
+
+    private void collect(int node, int k, List<Entry> entries) {
+        if (node == NONE || entries.size() >= k) return;
+        collect(left(node), k, entries);
+        if (entries.size() < k) entries.add(entry(node, entries.size() + 1));
+        collect(right(node), k, entries);
+    }
+
+    private Entry entry(int id, int rank) {
+        int at = offset(id);
+        byte[] name = new byte[map.get(at + NAME)];
+        map.get(at + NAME + 1, name);
+        return new Entry(new String(name, StandardCharsets.UTF_8), rank, map.getLong(at + POINTS), map.getInt(at + WINS), map.getInt(at + GAMES));
+    }
+
+    /**
+     * @return - the rank of a record (1 for the first).
+     */
+    private int rank(int id) {
+        int before = 0;
+        for (int node = root; node != NONE; ) {
+            if (node == id) return before + size(left(node)) + 1;
+            if (before(id, node))
+                node = left(node);
+            else {
+                before += size(left(node)) + 1;
+                node = right(node);
+            }
+        }
+        throw new IllegalStateException("record " + id + " is not in the tree");
+    }
+
+    private static int offset(int id) {
+        return HEADER_BYTES + id * RECORD_BYTES;
+    }
+
+    private int left(int id) {
+        return map.getInt(offset(id) + LEFT);
+    }
+
+    private int right(int id) {
+        return map.getInt(offset(id) + RIGHT);
+    }
+
+    private int size(int id) {
+        return id == NONE ? 0 : map.getInt(offset(id) + SIZE);
+    }
+
+    private void setLeft(int id, int left) {
+        map.putInt(offset(id) + LEFT, left);
+        map.putInt(offset(id) + SIZE, size(left) + size(right(id)) + 1);
+    }
+
+    private void setRight(int id, int right) {
+        map.putInt(offset(id) + RIGHT, right);
+        map.putInt(offset(id) + SIZE, size(left(id)) + size(right) + 1);
+    }
+
+    /**
+     * @return - true iff record a is ranked before record b.
+     */
+    private boolean before(int a, int b) {
+        long pointsA = map.getLong(offset(a) + POINTS), pointsB = map.getLong(offset(b) + POINTS);
+        if (pointsA != pointsB) return pointsA > pointsB;
+        int winsA = map.getInt(offset(a) + WINS), winsB = map.getInt(offset(b) + WINS);
+        if (winsA != winsB) return winsA > winsB;
+        return a < b;
+    }
+
+    /**
+     * Adds a record to the tree (its links are reset).
+     */
+    private void insert(int id) {
+        map.putInt(offset(id) + LEFT, NONE);
+        map.putInt(offset(id) + RIGHT, NONE);
+        map.putInt(offset(id) + SIZE, 1);
+        split(root, id);
+        int after = splitAfter;
+        root = merge(merge(splitBefore, id), after);
+    }
+
+    /**
+     * Removes a record from the subtree of node (while its key is unchanged).
+     *
+     * @return - the new root of the subtree.
+     */
+    private int remove(int node, int id) {
+        if (node == id) return merge(left(node), right(node));
+        if (before(id, node))
+            setLeft(node, remove(left(node), id));
+        else
+            setRight(node, remove(right(node), id));
+        return node;
+    }
+
+    /**
+     * Splits the subtree of node into the records before id (splitBefore) and the others (splitAfter).
+     */
+    private void split(int node, int id) {
+        if (node == NONE) {
+            splitBefore = splitAfter = NONE;
+        } else if (before(node, id)) {
+            split(right(node), id);
+            setRight(node, splitBefore);
+            splitBefore = node;
+        } else {
+            split(left(node), id);
+            setLeft(node, splitAfter);
+            splitAfter = node;
+        }
+    }
+
+    /**
+     * Merges two subtrees, all the records of a before all the records of b.
+     *
+     * @return - the root of the merged tree.
+     */
+    private int merge(int a, int b) {
+        if (a == NONE) return b;
+        if (b == NONE) return a;
+        if (map.getInt(offset(a) + PRIORITY) > map.getInt(offset(b) + PRIORITY)) {
+            setRight(a, merge(right(a), b));
+            return a;
+        }
+        setLeft(b, merge(a, left(b)));
+        return b;
+    }
+
+    /**
+     * @return - the name as stored in a record.
+     * @throws IllegalArgumentException - if the name takes more than NAME_BYTES bytes (it is not cut, since that could
+     *                                    split a character, and would give names with a common prefix one record).
+     */
+    private static byte[] encode(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > NAME_BYTES)
+            throw new IllegalArgumentException("player name longer than " + NAME_BYTES + " bytes: " + name);
+        return bytes;
+    }
+
+    private boolean nameEquals(int id, byte[] name) {
+        int at = offset(id);
+        if (map.get(at + NAME) != name.length) return false;
+        for (int i = 0; i < name.length; i++)
+            if (map.get(at + NAME + 1 + i) != name[i])
+                return false;
+        return true;
+    }
+
+    private int hash(byte[] name) {
+        return Arrays.hashCode(name) * 0x9E3779B9 >>> 1;
+    }
+
+    /**
+     * @return - the id of the record with the name (NONE if none).
+     */
+    private int find(byte[] name) {
+        int mask = index.length - 1;
+        for (int i = hash(name) & mask; index[i] != 0; i = (i + 1) & mask)
+            if (nameEquals(index[i] - 1, name))
+                return index[i] - 1;
+        return NONE;
+    }
+
+    /**
+     * Adds a new record with the name (not in the tree yet).
+     */
+    private int add(byte[] name) throws IOException {
+        if (count == capacity) map(2 * capacity);
+        int id = count++;
+        int at = offset(id);
+        map.put(at + NAME, (byte) name.length);
+        map.put(at + NAME + 1, name);
+        map.putLong(at + POINTS, 0);
+        map.putInt(at + WINS, 0);
+        map.putInt(at + GAMES, 0);
+        map.putInt(at + PRIORITY, random.nextInt());
+        map.putInt(HEADER_COUNT, count); // (the record is complete, so it is kept even if the game is not)
+        if (2 * count > index.length)
+            rebuildIndex(2 * index.length);
+        else
+            indexRecord(id);
+        return id;
+    }
+
+    private void rebuildIndex(int size) {
+        index = new int[size];
+        for (int id = 0; id < count; id++)
+            indexRecord(id);
+    }
+
+    private void indexRecord(int id) {
+        int at = offset(id);
+        byte[] name = new byte[map.get(at + NAME)];
+        map.get(at + NAME + 1, name);
+        int mask = index.length - 1;
+        int i = hash(name) & mask;
+        while (index[i] != 0)
+            i = (i + 1) & mask;
+        index[i] = id + 1;
+    }
+
+    /**
+     * @return - a subscriber of the game events that adds the results of the game to the leaderboard when it is over.
+     */
+    public GameRecorder recorder(Logger logger, Config config) {
+        return new GameRecorder(logger, config);
+    }
+
+    /**
+     * Collects the final scores and the winners of a game from the game events, and records them.
+     */
+    public class GameRecorder implements Flow.Subscriber<GameEvent> {
+
+        private final Logger logger;
+        private final Config config;
+        private final int[] scores;
+        private final List<Integer> winners = new ArrayList<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private GameRecorder(Logger logger, Config config) {
+            this.logger = logger;
+            this.config = config;
+            scores = new int[config.players];
+        }
+
+        /**
+         * @return - the types of the events the recorder needs (to subscribe to only them).
+         */
+        public Set<GameEvent.Type> types() {
+            return EnumSet.of(GameEvent.Type.FINAL_SCORE, GameEvent.Type.WINNER);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(GameEvent event) {
+            if (event.type() == GameEvent.Type.FINAL_SCORE)
+                scores[event.player()] = event.value();
+            else if (event.type() == GameEvent.Type.WINNER) {
+                winners.add(event.player());
+                if (winners.size() == event.value()) recordGame();
+            }
+        }
+
+        private void recordGame() {
+            try {
+                record(config.playerNames, scores, winners.stream().mapToInt(Integer::intValue).toArray());
+                for (String name : config.playerNames)
+                    logger.severe("leaderboard: " + get(name));
+            } catch (IOException | IllegalArgumentException e) {
+                logger.severe("error recording the game in the leaderboard: " + e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            logger.severe("leaderboard recorder failed: " + throwable);
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+
+        /**
+         * Waits until the game events end (and the game, if it was over, is recorded).
+         */
+        public void awaitCompletion() throws InterruptedException {
+            done.await(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package bguspl.set;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static bguspl.set.GameServer.*;
+import static bguspl.set.SpectatorStream.*;
+
+/**
+ * A load generator for the game server: opens many bot connections over the loopback interface, each joining as one
+ * of the human players and pressing random keys at a fixed rate, and counts the messages the server sends back.
+ * All the connections run on a single thread over a Selector, like the server.
+ *
+ * Usage: LoadClient port [connections [keys per second per connection [seconds]]]. Connection i joins as player i,
+ * so the game should have at least as many human players as connections (the others only watch).
+ */
+public class LoadClient {
+
+    private final Selector selector;
+    private final Bot[] bots;
+    private final double keysPerSecond;
+
+    private int joined = 0;
+    private int rejected = 0;
+    private int disconnected = 0;
+    private long keysSent = 0;
+    private long messagesReceived = 0;
+
+    public LoadClient(int port, int connections, double keysPerSecond) throws IOException {
+        this.keysPerSecond = keysPerSecond;
+        selector = Selector.open();
+        bots = new Bot[connections];
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            bots[i] = new Bot(i, channel);
+            channel.connect(address);
+            bots[i].key = channel.register(selector, SelectionKey.OP_CONNECT, bots[i]);
+        }
+    }
+
+    /**
+     * Runs the bots for the given time (or until the server closes all the connections).
+     */
+    public void run(long millis) throws IOException {
+        long start = System.nanoTime(), end = start + millis * 1000000;
+        long pressed = 0;
+        while (System.nanoTime() < end && disconnected < bots.length) {
+            selector.select(1);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Bot bot = (Bot) key.attachment();
+                if (!key.isValid()) continue;
+                if (key.isConnectable()) connect(bot);
+                else if (key.isReadable()) read(bot);
+            }
+
+            // press the keys that are due by now, round robin over the bots that joined
+            long due = (long) ((System.nanoTime() - start) / 1e9 * keysPerSecond * bots.length);
+            for (; pressed < due; pressed++) {
+                Bot bot = bots[(int) (pressed % bots.length)];
+                if (bot.tableSize > 0 && !bot.closed && bot.out.remaining() >= MESSAGE_BYTES) {
+                    bot.out.putLong(message(KEY, ThreadLocalRandom.current().nextInt(bot.tableSize), 0));
+                    keysSent++;
+                }
+            }
+            for (Bot bot : bots)
+                flush(bot);
+        }
+        for (Bot bot : bots)
+            close(bot);
+        selector.close();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d connections (%d joined, %d rejected, %d disconnected) in %.1f seconds%n",
+                bots.length, joined, rejected, disconnected, seconds);
+        System.out.printf("sent %d keys (%.0f per second), received %d messages (%.0f per second)%n",
+                keysSent, keysSent / seconds, messagesReceived, messagesReceived / seconds);
+    }
+
+    private void connect(Bot bot) {
+        try {
+            bot.channel.finishConnect();
+            bot.key.interestOps(SelectionKey.OP_READ);
+            bot.out.putLong(message(JOIN, bot.id, 0));
+        } catch (IOException e) {
+            close(bot);
+        }
+    }
+
+    private void read(Bot bot) {
+        try {
+            if (bot.channel.read(bot.in) < 0) {
+                close(bot);
+                return;
+            }
+        } catch (IOException e) {
+            close(bot);
+            return;
+        }
+        ByteBuffer in = bot.in.flip();
+        for (; in.remaining() >= MESSAGE_BYTES; messagesReceived++) {
+            long message = in.getLong();
+            if (type(message) == JOIN) {
+                bot.tableSize = value(message);
+                joined++;
+            } else if (type(message) == REJECT)
+                rejected++;
+        }
+        in.compact();
+    }
+
+    private void flush(Bot bot) {
+        if (bot.closed || bot.out.position() == 0 || !bot.channel.isConnected()) return;
+        try {
+            bot.channel.write(bot.out.flip());
+        } catch (IOException e) {
+            close(bot);
+        }
+        bot.out.compact();
+    }
+
+    private void close(Bot bot) {
+        if (bot.closed) return;
+        bot.closed = true;
+        disconnected++;
+        bot.key.cancel();
+        try {
+            bot.channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * A bot connection.
+     */
+    private static class Bot {
+
+        final int id;
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocateDirect(MESSAGE_BYTES * 4096);
+        final ByteBuffer out = ByteBuffer.allocateDirect(MESSAGE_BYTES * 256);
+
+        /**
+         * The table size sent when the bot joined (0 until then, or if it was rejected).
+         */
+        int tableSize = 0;
+
+        boolean closed = false;
+
+        Bot(int id, SocketChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: LoadClient port [connections [keys per second per connection [seconds]]]");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        double keysPerSecond = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        long seconds = args.length > 3 ? Long.parseLong(args[3]) : 10;
+        new LoadClient(port, connections, keysPerSecond).run(seconds * 1000);
+    }
+}
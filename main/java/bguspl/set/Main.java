@@ -1,6 +1,7 @@
 package bguspl.set;
 
 import bguspl.set.ex.Dealer;
+import bguspl.set.ex.GameLoop;
 import bguspl.set.ex.Player;
 import bguspl.set.ex.Table;
 
@@ -18,6 +19,7 @@ import java.util.logging.*;
 public class Main {
 
     private static Dealer dealer;
+    private static GameLoop gameLoop;
     private static Thread mainThread;
 
     private static boolean xButtonPressed = false;
@@ -27,6 +29,7 @@ public class Main {
         if (logger != null) logger.severe("exit button pressed");
         xButtonPressed = true;
         if (dealer != null) dealer.terminate();
+        if (gameLoop != null) gameLoop.terminate();
         mainThread.join();
     }
 
@@ -46,27 +49,77 @@ public class Main {
         Util util = new UtilImpl(config);
 
         Player[] players = new Player[config.players];
-        UserInterface ui = null;
+        UserInterface swing = null;
         try {
-            ui = new UserInterfaceSwing(logger, config, players);
+            swing = new UserInterfaceSwing(logger, config, players);
         } catch (UnsupportedOperationException | IllegalArgumentException e) {
             logger.severe("error creating swing user interface: " + e.getMessage());
             logger.severe("will try to run without user interface");
             if (config.humanPlayers > 0)
                 logger.severe("warning: running with human players with no user interface");
         }
-        ui = new UserInterfaceDecorator(logger, util, ui);
+        // (the decorator logs and spins behind the ui queue, on the event dispatch thread, not on the game threads)
+        UserInterface ui = new UserInterfaceDecorator(logger, util, swing);
+        if (swing != null && config.uiQueueCapacity > 0)
+            ui = new UserInterfaceAsync(config, ui, config.uiQueueCapacity);
+        GameServer server = null;
+        if (config.serverPort > 0) {
+            try {
+                SpectatorStream stream = new SpectatorStream(config, ui);
+                server = new GameServer(logger, config, stream, players);
+                ui = stream;
+            } catch (IOException e) {
+                logger.severe("error starting the game server: " + e.getMessage());
+            }
+        }
 
         Env env = new Env(logger, config, ui, util);
 
+        Leaderboard leaderboard = null;
+        Leaderboard.GameRecorder recorder = null;
+        if (!config.leaderboardFile.isEmpty()) {
+            try {
+                leaderboard = new Leaderboard(config.leaderboardFile);
+                recorder = leaderboard.recorder(logger, config);
+                // (the results are only published once, when the game is over, so none of them may be dropped)
+                env.events.subscribe(recorder, GameEventBus.OverflowPolicy.GROW, config.eventBufferSize, recorder.types());
+            } catch (IOException e) {
+                logger.severe("error opening the leaderboard: " + e.getMessage());
+            }
+        }
+        GameHistory history = null;
+        GameHistory.Recorder historyRecorder = null;
+        if (!config.historyDirectory.isEmpty()) {
+            try {
+                history = new GameHistory(config.historyDirectory);
+                historyRecorder = history.recorder(logger, config);
+                env.events.subscribe(historyRecorder, GameEventBus.OverflowPolicy.GROW, config.eventBufferSize,
+                        historyRecorder.types());
+            } catch (IOException e) {
+                logger.severe("error opening the game history: " + e.getMessage());
+            }
+        }
+
         // create the game entities
         Table table = new Table(env);
-        dealer = new Dealer(env, table, players);
-        for (int i = 0; i < players.length; i++)
-            players[i] = new Player(env, dealer, table, i, i < env.config.humanPlayers);
+        Runnable game;
+        if (config.singleThreaded) {
+            gameLoop = new GameLoop(env, table, players);
+            for (int i = 0; i < players.length; i++)
+                players[i] = new Player(env, gameLoop, table, i, i < env.config.humanPlayers);
+            game = gameLoop;
+        } else {
+            dealer = new Dealer(env, table, players);
+            for (int i = 0; i < players.length; i++)
+                players[i] = new Player(env, dealer, table, i, i < env.config.humanPlayers);
+            dealer.resume();
+            game = dealer;
+        }
+
+        if (server != null) server.start();
 
-        // start the dealer thread
-        ThreadLogger dealerThread = new ThreadLogger(dealer, "dealer", logger);
+        // start the dealer thread (or the game loop thread)
+        ThreadLogger dealerThread = new ThreadLogger(game, config.singleThreaded ? "game-loop" : "dealer", logger);
         dealerThread.startWithLog();
 
         try {
@@ -78,6 +131,24 @@ public class Main {
             logger.severe("thanks for playing... it was fun!");
             System.out.println("Thanks for playing... it was fun!");
             ThreadLogger.logStop(logger, Thread.currentThread().getName());
+            env.events.close();
+            if (leaderboard != null) {
+                try {
+                    recorder.awaitCompletion();
+                    leaderboard.close();
+                } catch (InterruptedException | IOException e) {
+                    logger.severe("error closing the leaderboard: " + e.getMessage());
+                }
+            }
+            if (history != null) {
+                try {
+                    historyRecorder.awaitCompletion();
+                    history.close();
+                } catch (InterruptedException | IOException e) {
+                    logger.severe("error closing the game history: " + e.getMessage());
+                }
+            }
+            if (server != null) server.terminate();
             if (!xButtonPressed) env.ui.dispose();
             for (Handler h : logger.getHandlers()) h.flush();
         }
@@ -0,0 +1,59 @@
+package bguspl.set;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts the legal sets whose lowest card is in a range of cards, per set pattern, on a fork join pool.
+ * The range is split into parts of about the same work (see SetFinder.split), and every part counts into its own
+ * array, so the workers share nothing until the counts are merged.
+ */
+class SetCountTask extends RecursiveTask<long[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SetFinder finder;
+    private final int[] cards;
+    private final int first;
+    private final int last;
+
+    /**
+     * How many more times the range may be split.
+     */
+    private final int splits;
+
+    /**
+     * @param finder - the set finder.
+     * @param cards  - the cards to search, sorted in increasing order.
+     * @param first  - the index of the first lowest card to search.
+     * @param last   - the index after the last lowest card to search.
+     * @param splits - how many times the range may be split (there will be up to 2 ^ splits parts).
+     */
+    SetCountTask(SetFinder finder, int[] cards, int first, int last, int splits) {
+        this.finder = finder;
+        this.cards = cards;
+        this.first = first;
+        this.last = last;
+        this.splits = splits;
+    }
+
+    @Override
+    protected long[] compute() {
+        if (splits > 0 && last - first > 1) {
+            int middle = finder.split(cards.length, first, last);
+            SetCountTask head = new SetCountTask(finder, cards, first, middle, splits - 1);
+            head.fork();
+            long[] counts = new SetCountTask(finder, cards, middle, last, splits - 1).compute();
+            long[] headCounts = head.join();
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += headCounts[i];
+            return counts;
+        }
+
+        long[] counts = new long[finder.patterns()];
+        finder.search(cards).run(first, last, set -> {
+            counts[finder.pattern(set)]++;
+            return true;
+        });
+        return counts;
+    }
+}
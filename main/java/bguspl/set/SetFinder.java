@@ -0,0 +1,175 @@
+package bguspl.set;
+
+/**
+ * Searches a collection of cards for legal sets of featureSize cards.
+ *
+ * Sets are built card by card (in increasing card id order), keeping for every feature the mask of values seen so
+ * far. A partial combination is dropped as soon as one of its features is neither all same nor all different, and the
+ * last card of a set is not searched for at all: it is the only card that completes every feature, so it is enough to
+ * check whether it is in the collection.
+ */
+class SetFinder {
+
+    private final int featureCount;
+    private final int setSize;
+    private final int deckSize;
+    private final CardEncoding encoding;
+    private final long[] packedCards;
+
+    /**
+     * All the values a feature can have.
+     */
+    private final int allValues;
+
+    SetFinder(Config config, CardEncoding encoding, long[] packedCards) {
+        this.featureCount = config.featureCount;
+        this.setSize = config.featureSize;
+        this.deckSize = config.deckSize;
+        this.encoding = encoding;
+        this.packedCards = packedCards;
+        allValues = (1 << config.featureSize) - 1;
+    }
+
+    /**
+     * @param cards - the cards to search, sorted in increasing order.
+     * @return - a search over the cards (to be used by a single thread).
+     */
+    Search search(int[] cards) {
+        return new Search(cards);
+    }
+
+    /**
+     * Splits cards[first..last) into two ranges of lowest cards that take about the same time to search: a lower
+     * lowest card has more cards after it, so searching it takes longer (about (n - i) ^ (setSize - 2) steps).
+     *
+     * @return - the index that starts the second range.
+     */
+    int split(int n, int first, int last) {
+        double exponent = Math.max(2, setSize - 1);
+        double head = Math.pow(n - first, exponent), tail = Math.pow(n - last, exponent);
+        int middle = n - (int) Math.round(Math.pow((head + tail) / 2, 1 / exponent));
+        return Math.min(last - 1, Math.max(first + 1, middle));
+    }
+
+    /**
+     * @return - the number of set patterns (see SetStatistics).
+     */
+    int patterns() {
+        return 1 << featureCount;
+    }
+
+    /**
+     * @param set - a legal set.
+     * @return - the pattern of the set: bit f is set iff feature f is all different (see SetStatistics).
+     */
+    int pattern(int[] set) {
+        if (set.length < 2) return 0;
+        // in a legal set, a feature is all different iff it differs between the first two cards
+        long difference = packedCards[set[0]] ^ packedCards[set[1]];
+        int pattern = 0;
+        for (int f = 0; f < featureCount; ++f)
+            if (CardEncoding.feature(difference, f) != 0) pattern |= 1 << f;
+        return pattern;
+    }
+
+    /**
+     * The state of a search over some cards. Each thread needs its own search, but a search may be run many times.
+     */
+    class Search {
+
+        private final int[] cards;
+        private final long[] present;
+        private final int[] set = new int[setSize];
+        private Util.SetVisitor visitor;
+
+        /**
+         * masks[k * featureCount + f] is the mask of the values of feature f in the first k + 1 cards of the set.
+         */
+        private final int[] masks = new int[setSize * featureCount];
+
+        private Search(int[] cards) {
+            this.cards = cards;
+            present = new long[(deckSize + 63) / 64];
+            for (int card : cards)
+                present[card >>> 6] |= 1L << card;
+        }
+
+        private int feature(int card, int f) {
+            return CardEncoding.feature(packedCards[card], f);
+        }
+
+        /**
+         * Visits the sets whose lowest card is one of cards[first..last).
+         *
+         * @param first   - the index of the first lowest card to search.
+         * @param last    - the index after the last lowest card to search.
+         * @param visitor - receives the sets found.
+         * @return - false iff the visitor stopped the search.
+         */
+        boolean run(int first, int last, Util.SetVisitor visitor) {
+            this.visitor = visitor;
+            for (int i = first; i < last; ++i) {
+                set[0] = cards[i];
+                for (int f = 0; f < featureCount; ++f)
+                    masks[f] = 1 << feature(cards[i], f);
+                if (!extend(1, i + 1)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Adds the k-th card of the set, from cards[start..].
+         */
+        private boolean extend(int k, int start) {
+            if (k == setSize) return visitor.visit(set);
+            if (k == setSize - 1 && setSize >= 3) return complete(k);
+
+            for (int j = start; j <= cards.length - (setSize - k); ++j) {
+                int card = cards[j];
+                if (setSize > 3 && !add(k, card)) continue; // (the masks are only needed to complete bigger sets)
+                set[k] = card;
+                if (!extend(k + 1, j + 1)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Adds a card as the k-th card of the set, if every feature can still end up all same or all different.
+         */
+        private boolean add(int k, int card) {
+            int previous = (k - 1) * featureCount, next = k * featureCount;
+            for (int f = 0; f < featureCount; ++f) {
+                int seen = masks[previous + f];
+                int value = 1 << feature(card, f);
+                int distinct = Integer.bitCount(seen);
+                // a repeated value is only allowed while the feature is all same, a new one while it is all different
+                if ((seen & value) != 0 ? distinct != 1 : distinct != k) return false;
+                masks[next + f] = seen | value;
+            }
+            return true;
+        }
+
+        /**
+         * Looks up the only card that completes the first k cards (k >= 2) into a legal set.
+         */
+        private boolean complete(int k) {
+            int card;
+            if (setSize == 3) {
+                card = encoding.unpack(encoding.third(packedCards[set[0]], packedCards[set[1]]));
+            } else {
+                long packed = 0;
+                int offset = (k - 1) * featureCount;
+                for (int f = 0; f < featureCount; ++f) {
+                    int seen = masks[offset + f];
+                    // all same: the same value, all different: the only value missing
+                    int value = Integer.bitCount(seen) == 1 ? seen : allValues & ~seen;
+                    packed |= (long) Integer.numberOfTrailingZeros(value) << (f * CardEncoding.LANE_BITS);
+                }
+                card = encoding.unpack(packed);
+            }
+            if (card <= set[k - 1] || (present[card >>> 6] & 1L << card) == 0) return true;
+            set[k] = card;
+            return visitor.visit(set);
+        }
+    }
+}
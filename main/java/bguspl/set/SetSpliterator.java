@@ -0,0 +1,88 @@
+package bguspl.set;
+
+import java.util.ArrayDeque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A lazy spliterator over the legal sets in some cards. The sets are searched one lowest card at a time, and the
+ * spliterator splits by ranges of lowest cards, balanced by the work they take.
+ */
+class SetSpliterator implements Spliterator<int[]> {
+
+    private final SetFinder finder;
+    private final int[] cards;
+    private SetFinder.Search search;
+
+    /**
+     * The range of lowest cards (indices into cards) that were not searched yet.
+     */
+    private int first;
+    private final int last;
+
+    /**
+     * The sets of the last lowest card searched that were not consumed yet.
+     */
+    private final ArrayDeque<int[]> pending = new ArrayDeque<>();
+
+    /**
+     * @param finder - the set finder.
+     * @param cards  - the cards to search, sorted in increasing order.
+     * @param first  - the index of the first lowest card to search.
+     * @param last   - the index after the last lowest card to search.
+     */
+    SetSpliterator(SetFinder finder, int[] cards, int first, int last) {
+        this.finder = finder;
+        this.cards = cards;
+        this.first = first;
+        this.last = last;
+    }
+
+    private SetFinder.Search search() {
+        if (search == null) search = finder.search(cards); // created lazily, on the thread that uses this part
+        return search;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super int[]> action) {
+        while (pending.isEmpty() && first < last) {
+            search().run(first, first + 1, set -> pending.add(set.clone()));
+            first++;
+        }
+        if (pending.isEmpty()) return false;
+        action.accept(pending.poll());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super int[]> action) {
+        while (!pending.isEmpty())
+            action.accept(pending.poll());
+        if (first < last) {
+            search().run(first, last, set -> {
+                action.accept(set.clone());
+                return true;
+            });
+            first = last;
+        }
+    }
+
+    @Override
+    public Spliterator<int[]> trySplit() {
+        if (!pending.isEmpty() || last - first < 2) return null;
+        int middle = finder.split(cards.length, first, last);
+        Spliterator<int[]> prefix = new SetSpliterator(finder, cards, first, middle);
+        first = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return last - first + pending.size(); // a rough guess (the number of lowest cards left)
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL | IMMUTABLE;
+    }
+}
@@ -0,0 +1,41 @@
+package bguspl.set;
+
+/**
+ * The number of legal sets in some cards, in total and per feature pattern.
+ * The pattern of a set has bit i set iff feature i is all different in the set (and clear iff it is all same).
+ */
+public class SetStatistics {
+
+    /**
+     * The total number of legal sets.
+     */
+    public final long total;
+
+    /**
+     * The number of legal sets of each pattern.
+     */
+    private final long[] perPattern;
+
+    SetStatistics(long[] perPattern) {
+        this.perPattern = perPattern;
+        long sum = 0;
+        for (long count : perPattern)
+            sum += count;
+        total = sum;
+    }
+
+    /**
+     * @return - the number of possible patterns (2 ^ featureCount).
+     */
+    public int patterns() {
+        return perPattern.length;
+    }
+
+    /**
+     * @param pattern - a set pattern (bit i set iff feature i is all different).
+     * @return - the number of legal sets with this pattern.
+     */
+    public long count(int pattern) {
+        return perPattern[pattern];
+    }
+}
@@ -0,0 +1,373 @@
+package bguspl.set;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A UserInterface implementation that encodes the ui updates into a stream of compact delta messages, so any number
+ * of spectators can watch the game without slowing it down.
+ *
+ * Every update is encoded once, as a long (the message type in the top byte, a 24 bit argument and a 32 bit value),
+ * into a single log shared by all the subscribers: a subscriber reads the messages in place, and the game threads
+ * never wait for it. Every KEYFRAME_INTERVAL deltas the whole state is written as a keyframe, and a subscriber starts
+ * at the latest keyframe. A subscriber that falls so far behind that the log wraps around over its position skips
+ * ahead to the latest keyframe instead of holding the game up.
+ */
+public class SpectatorStream implements UserInterface {
+
+    /**
+     * Message types. PLACE_CARD: argument = slot, value = card. REMOVE_CARD: argument = slot. PLACE_TOKEN and
+     * REMOVE_TOKEN: argument = slot, value = player. REMOVE_TOKENS: argument = slot (or ALL). SCORE and FREEZE:
+     * argument = player, value = score or millis. COUNTDOWN: argument = 1 iff warn, value = millis. ELAPSED: value =
+     * millis. WINNER: argument = player, value = the number of winners. KEYFRAME: value = the number of messages of
+     * the keyframe that follow it (the whole state: a subscriber can forget everything it had before).
+     */
+    public static final int PLACE_CARD = 4;
+    public static final int REMOVE_CARD = 5;
+    public static final int PLACE_TOKEN = 6;
+    public static final int REMOVE_TOKEN = 7;
+    public static final int REMOVE_TOKENS = 8;
+    public static final int SCORE = 9;
+    public static final int FREEZE = 10;
+    public static final int COUNTDOWN = 11;
+    public static final int ELAPSED = 12;
+    public static final int WINNER = 13;
+    public static final int KEYFRAME = 14;
+
+    /**
+     * The largest argument, also used as the slot of REMOVE_TOKENS for all the slots.
+     */
+    public static final int ALL = 0xFFFFFF;
+
+    /**
+     * The number of deltas between keyframes.
+     */
+    public static final int KEYFRAME_INTERVAL = 1024;
+
+    /**
+     * Receives the messages of a subscriber.
+     */
+    public interface Visitor {
+
+        /**
+         * @param message - the next message.
+         * @return        - false iff the message could not be taken (it will be visited again next time).
+         */
+        boolean visit(long message);
+    }
+
+    private final UserInterface ui;
+
+    /**
+     * The log of messages, by sequence number % capacity.
+     */
+    private final AtomicLongArray log;
+    private final int capacity;
+
+    /**
+     * Messages below published can be read. Messages below claimed - capacity were (or are being) overwritten.
+     */
+    private volatile long published = 0;
+    private volatile long claimed = 0;
+
+    /**
+     * The sequence number of the latest keyframe message.
+     */
+    private volatile long lastKeyframe = 0;
+
+    /**
+     * The number of deltas written since the latest keyframe (guarded by lock).
+     */
+    private int deltas = 0;
+
+    /**
+     * Called after messages are published (e.g. to wake a subscriber up), or null.
+     */
+    private volatile Runnable listener;
+
+    private final Object lock = new Object();
+
+    /**
+     * The state, for the keyframes (guarded by lock): the card in each slot (-1 if none), the tokens (bit
+     * (player % 64) of word (slot * playerWords + player / 64)), the scores, and the latest freeze and timer messages.
+     */
+    private final int[] cards;
+    private final long[] tokens;
+    private final int playerWords;
+    private final int[] scores;
+    private final long[] freezes;
+    private long timer = 0;
+
+    /**
+     * @param ui - the ui to forward the updates to (null if none).
+     */
+    public SpectatorStream(Config config, UserInterface ui) {
+        this.ui = ui;
+        cards = new int[config.tableSize];
+        Arrays.fill(cards, -1);
+        playerWords = (config.players + 63) / 64;
+        tokens = new long[config.tableSize * playerWords];
+        scores = new int[config.players];
+        freezes = new long[config.players];
+
+        // a subscriber must be able to read a whole keyframe and the deltas after it before the log wraps around
+        int keyframeSize = 3 + config.tableSize + config.players * (config.featureSize + 2);
+        capacity = Integer.highestOneBit(4 * Math.max(KEYFRAME_INTERVAL, keyframeSize) - 1) << 1;
+        log = new AtomicLongArray(capacity);
+        synchronized (lock) {
+            keyframe();
+        }
+    }
+
+    public static long message(int type, int argument, int value) {
+        return (long) type << 56 | (long) (argument & ALL) << 32 | value & 0xFFFFFFFFL;
+    }
+
+    public static int type(long message) {
+        return (int) (message >>> 56);
+    }
+
+    public static int argument(long message) {
+        return (int) (message >>> 32) & ALL;
+    }
+
+    public static int value(long message) {
+        return (int) message;
+    }
+
+    /**
+     * @return - a new subscriber, starting at the latest keyframe.
+     */
+    public Subscriber subscribe() {
+        return new Subscriber();
+    }
+
+    /**
+     * Sets the listener to call after messages are published.
+     */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Writes a message to the log (holding lock).
+     */
+    private void write(long message) {
+        long sequence = published;
+        claimed = sequence + 1;
+        log.set((int) sequence & (capacity - 1), message);
+        published = sequence + 1;
+    }
+
+    /**
+     * Writes a delta, and a keyframe after every KEYFRAME_INTERVAL deltas (holding lock).
+     */
+    private void delta(int type, int argument, int value) {
+        write(message(type, argument, value));
+        if (++deltas >= KEYFRAME_INTERVAL) keyframe();
+    }
+
+    /**
+     * Writes the whole state (holding lock).
+     */
+    private void keyframe() {
+        int size = 1 + cards.length + (timer != 0 ? 1 : 0);
+        for (long word : tokens)
+            size += Long.bitCount(word);
+        for (int player = 0; player < scores.length; player++)
+            size += (scores[player] != 0 ? 1 : 0) + (freezes[player] != 0 ? 1 : 0);
+
+        long start = published;
+        write(message(KEYFRAME, 0, size));
+        for (int slot = 0; slot < cards.length; slot++)
+            write(cards[slot] < 0 ? message(REMOVE_CARD, slot, 0) : message(PLACE_CARD, slot, cards[slot]));
+        write(message(REMOVE_TOKENS, ALL, 0));
+        for (int slot = 0; slot < cards.length; slot++)
+            for (int i = 0; i < playerWords; i++)
+                for (long word = tokens[slot * playerWords + i]; word != 0; word &= word - 1)
+                    write(message(PLACE_TOKEN, slot, i * 64 + Long.numberOfTrailingZeros(word)));
+        // (scores only grow during a game, so a zero score is never stale)
+        for (int player = 0; player < scores.length; player++) {
+            if (scores[player] != 0) write(message(SCORE, player, scores[player]));
+            if (freezes[player] != 0) write(freezes[player]);
+        }
+        if (timer != 0) write(timer);
+        lastKeyframe = start;
+        deltas = 0;
+    }
+
+    /**
+     * Calls the listener (not holding lock).
+     */
+    private void notifyListener() {
+        Runnable listener = this.listener;
+        if (listener != null) listener.run();
+    }
+
+    @Override
+    public void placeCard(int card, int slot) {
+        synchronized (lock) {
+            cards[slot] = card;
+            delta(PLACE_CARD, slot, card);
+        }
+        notifyListener();
+        if (ui != null) ui.placeCard(card, slot);
+    }
+
+    @Override
+    public void removeCard(int slot) {
+        synchronized (lock) {
+            cards[slot] = -1;
+            delta(REMOVE_CARD, slot, 0);
+        }
+        notifyListener();
+        if (ui != null) ui.removeCard(slot);
+    }
+
+    @Override
+    public void placeToken(int player, int slot) {
+        synchronized (lock) {
+            tokens[slot * playerWords + (player >>> 6)] |= 1L << player;
+            delta(PLACE_TOKEN, slot, player);
+        }
+        notifyListener();
+        if (ui != null) ui.placeToken(player, slot);
+    }
+
+    @Override
+    public void removeTokens() {
+        synchronized (lock) {
+            Arrays.fill(tokens, 0);
+            delta(REMOVE_TOKENS, ALL, 0);
+        }
+        notifyListener();
+        if (ui != null) ui.removeTokens();
+    }
+
+    @Override
+    public void removeTokens(int slot) {
+        synchronized (lock) {
+            for (int i = 0; i < playerWords; i++)
+                tokens[slot * playerWords + i] = 0;
+            delta(REMOVE_TOKENS, slot, 0);
+        }
+        notifyListener();
+        if (ui != null) ui.removeTokens(slot);
+    }
+
+    @Override
+    public void removeToken(int player, int slot) {
+        synchronized (lock) {
+            tokens[slot * playerWords + (player >>> 6)] &= ~(1L << player);
+            delta(REMOVE_TOKEN, slot, player);
+        }
+        notifyListener();
+        if (ui != null) ui.removeToken(player, slot);
+    }
+
+    @Override
+    public void setCountdown(long millies, boolean warn) {
+        synchronized (lock) {
+            timer = message(COUNTDOWN, warn ? 1 : 0, (int) Math.min(millies, Integer.MAX_VALUE));
+            delta(COUNTDOWN, warn ? 1 : 0, (int) Math.min(millies, Integer.MAX_VALUE));
+        }
+        notifyListener();
+        if (ui != null) ui.setCountdown(millies, warn);
+    }
+
+    @Override
+    public void setElapsed(long millies) {
+        synchronized (lock) {
+            timer = message(ELAPSED, 0, (int) Math.min(millies, Integer.MAX_VALUE));
+            delta(ELAPSED, 0, (int) Math.min(millies, Integer.MAX_VALUE));
+        }
+        notifyListener();
+        if (ui != null) ui.setElapsed(millies);
+    }
+
+    @Override
+    public void setFreeze(int player, long millies) {
+        synchronized (lock) {
+            freezes[player] = millies > 0 ? message(FREEZE, player, (int) Math.min(millies, Integer.MAX_VALUE)) : 0;
+            delta(FREEZE, player, (int) Math.min(millies, Integer.MAX_VALUE));
+        }
+        notifyListener();
+        if (ui != null) ui.setFreeze(player, millies);
+    }
+
+    @Override
+    public void setScore(int player, int score) {
+        synchronized (lock) {
+            scores[player] = score;
+            delta(SCORE, player, score);
+        }
+        notifyListener();
+        if (ui != null) ui.setScore(player, score);
+    }
+
+    @Override
+    public void announceWinner(int[] players) {
+        synchronized (lock) {
+            for (int player : players)
+                delta(WINNER, player, players.length);
+        }
+        notifyListener();
+        if (ui != null) ui.announceWinner(players);
+    }
+
+    @Override
+    public void dispose() {
+        if (ui != null) ui.dispose();
+    }
+
+    /**
+     * A reader of the stream (to be used by a single thread at a time).
+     */
+    public class Subscriber {
+
+        /**
+         * The sequence number of the next message to read.
+         */
+        private long position = lastKeyframe;
+
+        /**
+         * The number of times the subscriber fell behind and skipped to a keyframe.
+         */
+        private long skips = 0;
+
+        private Subscriber() {}
+
+        /**
+         * Visits the messages published since the last call, up to max messages.
+         *
+         * @return - the number of messages taken.
+         */
+        public int poll(Visitor visitor, int max) {
+            int taken = 0;
+            while (taken < max && position < published) {
+                long message = log.get((int) position & (capacity - 1));
+                // the message is only good if it was not overwritten before or while it was read
+                if (claimed - position > capacity) {
+                    position = lastKeyframe;
+                    skips++;
+                    continue;
+                }
+                if (!visitor.visit(message)) break;
+                position++;
+                taken++;
+            }
+            return taken;
+        }
+
+        /**
+         * @return - the number of messages published and not read yet.
+         */
+        public long lag() {
+            return published - position;
+        }
+
+        public long skips() {
+            return skips;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package bguspl.set;
+
+import java.awt.EventQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A UserInterface implementation that hands the ui updates over to the AWT event dispatch thread, so the game threads
+ * never block on rendering. Each update is encoded as a compact command in a bounded lock-free ring buffer which is
+ * drained by a single consumer on the event dispatch thread. Timer, freeze and score updates are coalesced, so only
+ * the latest value is drawn.
+ *
+ * The cards and tokens on the table are kept here as well, and a command only tells the consumer which slot to draw
+ * again from them. When the ring is full, the command is not queued at all: the whole table is drawn again on the next
+ * drain instead, so the producers never lock or allocate, however long the burst.
+ */
+public class UserInterfaceAsync implements UserInterface {
+
+    /**
+     * Command op codes (stored in the top byte of a command).
+     */
+    private static final int PLACE_CARD = 1;
+    private static final int REMOVE_CARD = 2;
+    private static final int PLACE_TOKEN = 3;
+    private static final int REMOVE_ALL_TOKENS = 4;
+    private static final int REMOVE_SLOT_TOKENS = 5;
+    private static final int REMOVE_TOKEN = 6;
+
+    /**
+     * Marks a coalesced value that has no pending update.
+     */
+    private static final long NO_UPDATE = Long.MIN_VALUE;
+    private static final int NO_SCORE = Integer.MIN_VALUE;
+    private static final int NO_CARD = -1;
+
+    /**
+     * The ui that actually draws (called on the event dispatch thread only).
+     */
+    private final UserInterface ui;
+
+    /**
+     * The ring buffer of commands and the sequence number of each cell (multiple producers, single consumer).
+     */
+    private final long[] commands;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    /**
+     * The next position to be claimed by a producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The next position to be drained by the consumer (event dispatch thread only).
+     */
+    private long head;
+
+    /**
+     * The card in each slot, and whether each player has a token on each slot (at slot * players + player).
+     */
+    private final AtomicIntegerArray cards;
+    private final AtomicIntegerArray tokens;
+    private final int players;
+
+    /**
+     * True iff a command did not fit in the ring, so the whole table has to be drawn again.
+     */
+    private final AtomicBoolean redrawTable = new AtomicBoolean();
+
+    /**
+     * The latest coalesced timer values (countdown is encoded as millies << 1 | warn).
+     */
+    private final AtomicLong countdown = new AtomicLong(NO_UPDATE);
+    private final AtomicLong elapsed = new AtomicLong(NO_UPDATE);
+
+    /**
+     * The latest coalesced freeze and score values of each player.
+     */
+    private final AtomicLongArray freezes;
+    private final AtomicIntegerArray scores;
+    private final AtomicBoolean playersUpdated = new AtomicBoolean();
+
+    /**
+     * True iff a drain of the queue is already scheduled on the event dispatch thread.
+     */
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private final AtomicReference<int[]> winners = new AtomicReference<>();
+
+    /**
+     * @param config   - the game configuration.
+     * @param ui       - the user interface to draw on.
+     * @param capacity - the minimal capacity of the command queue (rounded up to a power of 2).
+     */
+    public UserInterfaceAsync(Config config, UserInterface ui, int capacity) {
+        this.ui = ui;
+
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        commands = new long[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        mask = size - 1;
+
+        cards = new AtomicIntegerArray(config.tableSize);
+        for (int slot = 0; slot < config.tableSize; slot++)
+            cards.set(slot, NO_CARD);
+        players = config.players;
+        tokens = new AtomicIntegerArray(config.tableSize * players);
+
+        freezes = new AtomicLongArray(config.players);
+        scores = new AtomicIntegerArray(config.players);
+        for (int player = 0; player < config.players; player++) {
+            freezes.set(player, NO_UPDATE);
+            scores.set(player, NO_SCORE);
+        }
+    }
+
+    private static long command(int op, int slot, int value) {
+        return (long) op << 56 | (long) (slot & 0xFFFFFF) << 32 | (value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Enqueues a command (after its change was made to the cards or tokens) and makes sure a drain is scheduled.
+     * Never blocks on the consumer.
+     */
+    private void submit(long command) {
+        if (!offer(command)) redrawTable.set(true);
+        scheduleDrain();
+    }
+
+    private boolean offer(long command) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    commands[index] = command;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0)
+                return false; // the queue is full
+            else
+                position = tail.get();
+        }
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true))
+            EventQueue.invokeLater(this::drain);
+    }
+
+    /**
+     * Applies all pending commands and coalesced values to the ui (runs on the event dispatch thread).
+     */
+    private void drain() {
+        drainScheduled.set(false);
+
+        // at most one lap of the ring, so a busy game does not starve the event dispatch thread
+        for (int drained = 0; drained <= mask; drained++) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) break;
+            long command = commands[index];
+            sequences.set(index, head + mask + 1);
+            head++;
+            apply(command);
+        }
+
+        if (redrawTable.getAndSet(false)) {
+            for (int slot = 0; slot < cards.length(); slot++) {
+                drawCard(slot);
+                drawTokens(slot);
+            }
+        }
+
+        long timer = countdown.getAndSet(NO_UPDATE);
+        if (timer != NO_UPDATE) ui.setCountdown(timer >> 1, (timer & 1) == 1);
+        timer = elapsed.getAndSet(NO_UPDATE);
+        if (timer != NO_UPDATE) ui.setElapsed(timer);
+
+        if (playersUpdated.getAndSet(false)) {
+            for (int player = 0; player < scores.length(); player++) {
+                long freeze = freezes.getAndSet(player, NO_UPDATE);
+                if (freeze != NO_UPDATE) ui.setFreeze(player, freeze);
+                int score = scores.getAndSet(player, NO_SCORE);
+                if (score != NO_SCORE) ui.setScore(player, score);
+            }
+        }
+
+        int[] announced = winners.getAndSet(null);
+        if (announced != null) ui.announceWinner(announced);
+
+        if (sequences.get((int) (head & mask)) == head + 1)
+            scheduleDrain(); // more commands arrived (or were left over) while draining
+    }
+
+    /**
+     * Draws the slot (or the token) of a command as it is now: a later change of the same slot is drawn again by its
+     * own command, so the ui always ends up showing the last change.
+     */
+    private void apply(long command) {
+        int op = (int) (command >>> 56);
+        int slot = (int) (command >>> 32) & 0xFFFFFF;
+        int player = (int) command;
+        switch (op) {
+            case PLACE_CARD:
+            case REMOVE_CARD:
+                drawCard(slot);
+                break;
+            case PLACE_TOKEN:
+            case REMOVE_TOKEN:
+                if (tokens.get(slot * players + player) != 0) ui.placeToken(player, slot);
+                else ui.removeToken(player, slot);
+                break;
+            case REMOVE_ALL_TOKENS:
+                for (slot = 0; slot < cards.length(); slot++)
+                    drawTokens(slot);
+                break;
+            case REMOVE_SLOT_TOKENS:
+                drawTokens(slot);
+                break;
+            default:
+                throw new IllegalStateException("unknown ui command " + op);
+        }
+    }
+
+    private void drawCard(int slot) {
+        int card = cards.get(slot);
+        if (card != NO_CARD) ui.placeCard(card, slot);
+        else ui.removeCard(slot);
+    }
+
+    private void drawTokens(int slot) {
+        ui.removeTokens(slot);
+        for (int player = 0; player < players; player++)
+            if (tokens.get(slot * players + player) != 0) ui.placeToken(player, slot);
+    }
+
+    @Override
+    public void placeCard(int card, int slot) {
+        cards.set(slot, card);
+        submit(command(PLACE_CARD, slot, card));
+    }
+
+    @Override
+    public void removeCard(int slot) {
+        cards.set(slot, NO_CARD);
+        submit(command(REMOVE_CARD, slot, 0));
+    }
+
+    @Override
+    public void placeToken(int player, int slot) {
+        tokens.set(slot * players + player, 1);
+        submit(command(PLACE_TOKEN, slot, player));
+    }
+
+    @Override
+    public void removeTokens() {
+        for (int i = 0; i < tokens.length(); i++)
+            tokens.set(i, 0);
+        submit(command(REMOVE_ALL_TOKENS, 0, 0));
+    }
+
+    @Override
+    public void removeTokens(int slot) {
+        for (int player = 0; player < players; player++)
+            tokens.set(slot * players + player, 0);
+        submit(command(REMOVE_SLOT_TOKENS, slot, 0));
+    }
+
+    @Override
+    public void removeToken(int player, int slot) {
+        tokens.set(slot * players + player, 0);
+        submit(command(REMOVE_TOKEN, slot, player));
+    }
+
+    @Override
+    public void setCountdown(long millies, boolean warn) {
+        countdown.set(millies << 1 | (warn ? 1 : 0));
+        scheduleDrain();
+    }
+
+    @Override
+    public void setElapsed(long millies) {
+        elapsed.set(millies);
+        scheduleDrain();
+    }
+
+    @Override
+    public void setFreeze(int player, long millies) {
+        freezes.set(player, millies);
+        playersUpdated.set(true);
+        scheduleDrain();
+    }
+
+    @Override
+    public void setScore(int player, int score) {
+        scores.set(player, score);
+        playersUpdated.set(true);
+        scheduleDrain();
+    }
+
+    @Override
+    public void announceWinner(int[] players) {
+        winners.set(players.clone());
+        scheduleDrain();
+    }
+
+    @Override
+    public void dispose() {
+        EventQueue.invokeLater(() -> {
+            drain();
+            ui.dispose();
+        });
+    }
+}
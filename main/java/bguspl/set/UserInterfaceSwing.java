@@ -4,10 +4,12 @@ import bguspl.set.ex.Player;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.FileNotFoundException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -24,15 +26,33 @@ public class UserInterfaceSwing extends JFrame implements UserInterface {
     private final WinnerPanel winnerPanel;
     private final Config config;
 
+    /**
+     * The refresh rate to assume when the display does not report one.
+     */
+    private static final int DEFAULT_REFRESH_RATE = 60;
+
+    /**
+     * Draws the pending timer and board changes once per display frame.
+     */
+    private final Timer frameTimer;
+
     static String intInBaseToPaddedString(int n, int padding, int base) {
         return format("%" + padding + "s", Integer.toString(n, base)).replace(' ', '0');
     }
 
+    private static int frameMillis() {
+        int refreshRate = DisplayMode.REFRESH_RATE_UNKNOWN;
+        if (!GraphicsEnvironment.isHeadless())
+            refreshRate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+        if (refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN) refreshRate = DEFAULT_REFRESH_RATE;
+        return Math.max(1, 1000 / refreshRate);
+    }
+
     public UserInterfaceSwing(Logger logger, Config config, Player[] players) {
 
         this.config = config;
         timerPanel = new TimerPanel();
-        gamePanel = new GamePanel();
+        gamePanel = new GamePanel(logger);
         playersPanel = new PlayersPanel();
         winnerPanel = new WinnerPanel();
 
@@ -66,13 +86,27 @@ public class UserInterfaceSwing extends JFrame implements UserInterface {
         addKeyListener(new InputManager(logger, config, players));
         addWindowListener(new WindowManager());
 
+        frameTimer = new Timer(frameMillis(), e -> {
+            timerPanel.flush();
+            gamePanel.flush();
+        });
+        frameTimer.start();
+
         EventQueue.invokeLater(() -> setVisible(true));
     }
 
     private class TimerPanel extends JPanel {
 
+        private static final long NO_UPDATE = Long.MIN_VALUE;
+
         private final JLabel timerField;
 
+        /**
+         * The latest timer values, drawn on the next frame (countdown is encoded as millies << 1 | warn).
+         */
+        private final AtomicLong pendingCountdown = new AtomicLong(NO_UPDATE);
+        private final AtomicLong pendingElapsed = new AtomicLong(NO_UPDATE);
+
         private String generateTime(long millies, boolean warn) {
             if (warn)
                 return format("Remaining Time: %.2f", (double) millies / 1000.0f);
@@ -91,124 +125,243 @@ public class UserInterfaceSwing extends JFrame implements UserInterface {
         }
 
         private void setCountdown(long millies, boolean warn) {
-            timerField.setText(generateTime(millies, warn));
-            timerField.setForeground(warn ? Color.RED : Color.BLACK);
+            pendingCountdown.set(millies << 1 | (warn ? 1 : 0));
         }
 
         private void setElapsed(long millies) {
-            timerField.setText("Elapsed time: " + millies / 1000);
+            pendingElapsed.set(millies);
+        }
+
+        private void flush() {
+            // (taken and reset in one step, so an update made in between is not lost)
+            long countdown = pendingCountdown.getAndSet(NO_UPDATE);
+            if (countdown != NO_UPDATE) {
+                boolean warn = (countdown & 1) == 1;
+                timerField.setText(generateTime(countdown >> 1, warn));
+                timerField.setForeground(warn ? Color.RED : Color.BLACK);
+            }
+            long elapsed = pendingElapsed.getAndSet(NO_UPDATE);
+            if (elapsed != NO_UPDATE) {
+                timerField.setText("Elapsed time: " + elapsed / 1000);
+            }
         }
     }
 
     private class GamePanel extends JLayeredPane {
 
         private final Image emptyCard;
-        private final Image[] deck;
-        private final Image[][] grid;
-        private final boolean[][][] playerTokens;
-        private final JLabel[][] tokenText;
+        private final CardImages deck;
+
+        /**
+         * The card in each cell of the table grid (-1 if none).
+         */
+        private final int[][] grid;
+
+        /**
+         * The players holding a token on each slot, as a bitset of tokenWords longs per slot.
+         */
+        private final long[] playerTokens;
+        private final int tokenWords;
+
+        /**
+         * The token glyph of each player (a colored dot with the player name), rendered on first use.
+         */
+        private final Image[] tokenGlyphs;
+
+        /**
+         * Dirty flags for each slot and the list of dirty slots, drawn on the next frame.
+         */
+        private final boolean[] dirtyFlags;
+        private final int[] dirtySlots;
+        private int dirtyCount;
 
         private Image loadImageResource(String filename) {
             URL imageResource = getClass().getClassLoader().getResource(filename);
             if (imageResource == null)
                 throw new RuntimeException(new FileNotFoundException(filename));
-            return new ImageIcon(imageResource).getImage();
+            return toCompatibleImage(new ImageIcon(imageResource).getImage());
         }
 
-        private GamePanel() {
+        /**
+         * Scales an image to the cell size once, in a format that matches the display (so drawing it is a plain copy).
+         */
+        private Image toCompatibleImage(Image image) {
+            BufferedImage compatible;
+            if (GraphicsEnvironment.isHeadless())
+                compatible = new BufferedImage(config.cellWidth, config.cellHeight, BufferedImage.TYPE_INT_ARGB_PRE);
+            else
+                compatible = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration()
+                        .createCompatibleImage(config.cellWidth, config.cellHeight, Transparency.TRANSLUCENT);
+            Graphics2D g = compatible.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, config.cellWidth, config.cellHeight, null);
+            g.dispose();
+            return compatible;
+        }
 
-            setPreferredSize(new Dimension(config.columns * config.cellWidth, config.rows * config.cellHeight));
+        private GamePanel(Logger logger) {
 
-            // init deck and load all pictures from png files
-            assert config.featureSize < 10; // otherwise there will be naming conflicts
+            setPreferredSize(new Dimension(config.columns * config.cellWidth, config.rows * config.cellHeight));
 
-            // load the image resources
-            deck = new Image[config.deckSize];
-            for (int i = 0; i < config.deckSize; ++i)
-                deck[i] = loadImageResource("cards/" + intInBaseToPaddedString(i, config.featureCount, config.featureSize) + ".png");
+            // init deck and start decoding all pictures from png files (cards needed earlier are decoded on demand)
+            // decks that have no png files are drawn from the card features instead
+            if (CardAtlas.hasCardImages(config)) {
+                CardAtlas atlas = new CardAtlas(logger, config);
+                atlas.loadAllAsync();
+                deck = atlas;
+            } else {
+                logger.info("no card images for this deck, cards will be drawn from their features");
+                deck = new CardRenderer(config, new UtilImpl(config));
+            }
             emptyCard = loadImageResource("cards/empty_card.png");
 
-            grid = new Image[config.rows][config.columns];
-            tokenText = new JLabel[config.rows][config.columns];
-            playerTokens = new boolean[config.players][config.rows][config.columns];
-            for (int row = 0; row < config.rows; row++) {
-                for (int column = 0; column < config.columns; column++) {
-                    // init the cards on the table grid as empty cards
-                    grid[row][column] = emptyCard;
-
-                    // init the JLabel selection overlay
-                    tokenText[row][column] = new JLabel("");
-                    tokenText[row][column].setVerticalAlignment(JLabel.TOP);
-                    tokenText[row][column].setHorizontalAlignment(JLabel.CENTER);
-                    tokenText[row][column].setOpaque(false);
-                    tokenText[row][column].setBorder(BorderFactory.createLineBorder(Color.black));
-                    tokenText[row][column].setBounds((column * config.cellWidth), (row * config.cellHeight), config.cellWidth, config.cellHeight);
-                    add(tokenText[row][column]);
-                }
-            }
+            grid = new int[config.rows][config.columns];
+            dirtyFlags = new boolean[config.tableSize];
+            dirtySlots = new int[config.tableSize];
+            tokenWords = (config.players + 63) / 64;
+            playerTokens = new long[config.tableSize * tokenWords];
+            tokenGlyphs = new Image[config.players];
+
+            // init the cards on the table grid as empty cards
+            for (int[] row : grid)
+                Arrays.fill(row, -1);
         }
 
         private void placeCard(int slot, int card) {
             int row = slot / config.columns;
             int column = slot % config.columns;
-            grid[row][column] = deck[card];
-            validate();
-            repaint();
+            deck.load(card);
+            grid[row][column] = card;
+            markDirty(slot);
         }
 
         private void removeCard(int slot) {
             int row = slot / config.columns;
             int column = slot % config.columns;
-            grid[row][column] = emptyCard;
-            validate();
-            repaint();
+            grid[row][column] = -1;
+            markDirty(slot);
         }
 
         private void placeToken(int player, int slot) {
-            int row = slot / config.columns;
-            int column = slot % config.columns;
-            playerTokens[player][row][column] = true;
-            tokenText[row][column].setText(generatePlayersTokenText(row, column));
+            synchronized (playerTokens) {
+                playerTokens[slot * tokenWords + (player >>> 6)] |= 1L << player;
+            }
+            markDirty(slot);
         }
 
         private void removeTokens() {
-            for (int i = 0; i < config.tableSize; i++)
-                removeTokens(i);
+            synchronized (playerTokens) {
+                Arrays.fill(playerTokens, 0L);
+            }
+            for (int slot = 0; slot < config.tableSize; slot++)
+                markDirty(slot);
         }
 
         private void removeTokens(int slot) {
-            int row = slot / config.columns;
-            int column = slot % config.columns;
-            for (int player = 0; player < playerTokens.length; player++) {
-                playerTokens[player][row][column] = false;
-                tokenText[row][column].setText(generatePlayersTokenText(row, column));
+            synchronized (playerTokens) {
+                Arrays.fill(playerTokens, slot * tokenWords, (slot + 1) * tokenWords, 0L);
             }
+            markDirty(slot);
         }
 
         private void removeToken(int player, int slot) {
-            int row = slot / config.columns;
-            int column = slot % config.columns;
-            playerTokens[player][row][column] = false;
-            tokenText[row][column].setText(generatePlayersTokenText(row, column));
+            synchronized (playerTokens) {
+                playerTokens[slot * tokenWords + (player >>> 6)] &= ~(1L << player);
+            }
+            markDirty(slot);
+        }
+
+        private void markDirty(int slot) {
+            synchronized (dirtyFlags) {
+                if (!dirtyFlags[slot]) {
+                    dirtyFlags[slot] = true;
+                    dirtySlots[dirtyCount++] = slot;
+                }
+            }
         }
 
-        private String generatePlayersTokenText(int row, int column) {
-            String text = "";
-            for (int player = 0; player < config.players; player++) {
-                if (playerTokens[player][row][column])
-                    text = text.concat(config.playerNames[player] + ", ");
+        /**
+         * Repaints only the cells that changed since the last frame.
+         */
+        private void flush() {
+            synchronized (dirtyFlags) {
+                for (int i = 0; i < dirtyCount; i++) {
+                    int slot = dirtySlots[i];
+                    int row = slot / config.columns;
+                    int column = slot % config.columns;
+                    repaint(column * config.cellWidth, row * config.cellHeight, config.cellWidth, config.cellHeight);
+                    dirtyFlags[slot] = false;
+                }
+                dirtyCount = 0;
+            }
+        }
+
+        private Image tokenGlyph(int player) {
+            if (tokenGlyphs[player] == null) {
+                Font font = UIManager.getFont("Label.font");
+                FontMetrics metrics = getFontMetrics(font);
+                int height = metrics.getHeight();
+                int width = height + metrics.stringWidth(config.playerNames[player]) + height / 2;
+                BufferedImage glyph = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = glyph.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                g.setColor(new Color(255, 255, 255, 200));
+                g.fillRoundRect(0, 0, width, height, height, height);
+                g.setColor(Color.getHSBColor(player * 0.618034f % 1f, 0.85f, 0.85f));
+                g.fillOval(2, 2, height - 4, height - 4);
+                g.setColor(Color.BLACK);
+                g.setFont(font);
+                g.drawString(config.playerNames[player], height, metrics.getAscent());
+                g.dispose();
+                tokenGlyphs[player] = glyph;
+            }
+            return tokenGlyphs[player];
+        }
+
+        /**
+         * Draws the glyphs of the players holding a token on the cell, wrapping them into lines.
+         */
+        private void drawTokens(Graphics g, int slot, int left, int top) {
+            int x = left + 2, y = top + 2, lineHeight = 0;
+            for (int word = 0; word < tokenWords; word++) {
+                long bits;
+                synchronized (playerTokens) {
+                    bits = playerTokens[slot * tokenWords + word];
+                }
+                for (; bits != 0; bits &= bits - 1) {
+                    Image glyph = tokenGlyph(word << 6 | Long.numberOfTrailingZeros(bits));
+                    if (x > left + 2 && x + glyph.getWidth(null) > left + config.cellWidth) {
+                        x = left + 2;
+                        y += lineHeight + 2;
+                    }
+                    g.drawImage(glyph, x, y, null);
+                    x += glyph.getWidth(null) + 2;
+                    lineHeight = Math.max(lineHeight, glyph.getHeight(null));
+                }
             }
-            if (text.length() < 2)
-                return "";
-            return text.substring(0, text.length() - 2);
         }
 
         @Override
         public void paintComponent(Graphics g) {
-            // draw card images
-            for (int row = 0; row < config.rows; row++)
-                for (int column = 0; column < config.columns; column++)
-                    g.drawImage(grid[row][column], (column * config.cellWidth), (row * config.cellHeight), this);
+            // draw only the card images inside the repainted region
+            int firstRow = 0, lastRow = config.rows - 1, firstColumn = 0, lastColumn = config.columns - 1;
+            Rectangle clip = g.getClipBounds();
+            if (clip != null) {
+                firstRow = Math.max(firstRow, clip.y / config.cellHeight);
+                lastRow = Math.min(lastRow, (clip.y + clip.height - 1) / config.cellHeight);
+                firstColumn = Math.max(firstColumn, clip.x / config.cellWidth);
+                lastColumn = Math.min(lastColumn, (clip.x + clip.width - 1) / config.cellWidth);
+            }
+            g.setColor(Color.BLACK);
+            for (int row = firstRow; row <= lastRow; row++)
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    int x = column * config.cellWidth, y = row * config.cellHeight;
+                    if (grid[row][column] < 0) g.drawImage(emptyCard, x, y, this);
+                    else deck.draw(g, grid[row][column], x, y);
+                    g.drawRect(x, y, config.cellWidth - 1, config.cellHeight - 1);
+                    drawTokens(g, row * config.columns + column, x, y);
+                }
         }
     }
 
@@ -333,6 +486,7 @@ public class UserInterfaceSwing extends JFrame implements UserInterface {
 
     @Override
     public void dispose() {
+        frameTimer.stop();
         super.dispose();
     }
 }
@@ -1,12 +1,25 @@
 package bguspl.set;
 
 import java.util.List;
+import java.util.Spliterator;
 
 /**
  * An interface for general utilities provided for convenience.
  */
 public interface Util {
 
+    /**
+     * Receives the sets found by forEachSet.
+     */
+    interface SetVisitor {
+
+        /**
+         * @param set - the card ids of a legal set, in increasing order (the array is reused, copy it to keep it).
+         * @return - true to continue the search, false to stop it.
+         */
+        boolean visit(int[] set);
+    }
+
     /**
      * Converts a card id to an array of features (of config.featureCount values between 0 and config.featuresSize - 1)
      *
@@ -31,6 +44,24 @@ public interface Util {
      */
     boolean testSet(int[] cards);
 
+    /**
+     * Checks many candidate sets at once.
+     *
+     * @param cards - the candidate sets, each one as config.featureSize consecutive card ids.
+     * @param count - the number of candidate sets.
+     * @return - a bitmask of count bits (64 per long), bit i is set iff candidate i is a legal set.
+     */
+    long[] testSets(int[] cards, int count);
+
+    /**
+     * Finds the only card that completes config.featureSize - 1 cards into a legal set (for a feature size of 3 or
+     * more).
+     *
+     * @param cards - an array whose first config.featureSize - 1 entries are distinct card ids.
+     * @return - the id of the completing card, or -1 if the cards are not part of any legal set.
+     */
+    int completeSet(int[] cards);
+
     /**
      * Finds and returns up to count sets in the given collection of cards.
      *
@@ -40,6 +71,41 @@ public interface Util {
      */
     List<int[]> findSets(List<Integer> deck, int count);
 
+    /**
+     * Visits the sets in the given cards one by one, without allocating anything per set.
+     *
+     * @param cards   - the card ids (in any order, not modified).
+     * @param visitor - receives each set, and may stop the search.
+     * @return - false iff the visitor stopped the search.
+     */
+    boolean forEachSet(int[] cards, SetVisitor visitor);
+
+    /**
+     * Counts the sets in the given cards.
+     *
+     * @param cards - the card ids (in any order, not modified).
+     * @return - the number of legal sets.
+     */
+    long countSets(int[] cards);
+
+    /**
+     * Finds the sets in the given cards lazily. The spliterator splits the search by the lowest card of the sets, so
+     * it can be used in a parallel stream (e.g. StreamSupport.stream(util.setSpliterator(cards), true)).
+     *
+     * @param cards - the card ids (in any order, not modified).
+     * @return - a spliterator of the legal sets (each set is a new array).
+     */
+    Spliterator<int[]> setSpliterator(int[] cards);
+
+    /**
+     * Counts all the legal sets in the given cards, in total and per feature pattern, using all the cores (on the
+     * common fork join pool). Meant for analysis of big collections, such as the whole remaining deck.
+     *
+     * @param cards - the card ids (in any order, not modified).
+     * @return - the set statistics.
+     */
+    SetStatistics setStatistics(int[] cards);
+
     /**
      * Spin a random number of times (for debugging/testing).
      */
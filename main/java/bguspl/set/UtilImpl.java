@@ -3,7 +3,10 @@ package bguspl.set;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
@@ -13,8 +16,25 @@ public class UtilImpl implements Util {
 
     private final Config config;
 
+    /**
+     * The packed card features used by the set finder (null if the cards do not fit in a packed word).
+     */
+    private final CardEncoding encoding;
+    private final long[] packedCards;
+    private final SetFinder setFinder;
+
     public UtilImpl(Config config) {
         this.config = config;
+        if (config.featureCount <= CardEncoding.MAX_FEATURES && config.featureSize <= CardEncoding.MAX_FEATURE_SIZE) {
+            encoding = new CardEncoding(config.featureCount, config.featureSize);
+            packedCards = new long[config.deckSize];
+            Arrays.setAll(packedCards, encoding::pack);
+            setFinder = new SetFinder(config, encoding, packedCards);
+        } else {
+            encoding = null;
+            packedCards = null;
+            setFinder = null;
+        }
     }
 
     private void cardToFeatures(int card, int[] features) {
@@ -40,6 +60,8 @@ public class UtilImpl implements Util {
 
     @Override
     public boolean testSet(int[] cards) {
+        if (encoding != null && cards.length == config.featureSize) return testPacked(cards, 0);
+
         int[][] features = cardsToFeatures(Arrays.copyOf(cards, cards.length));
         for (int i = 0; i < config.featureCount; ++i) {
             boolean sameSame = true, butDifferent = true;
@@ -64,22 +86,93 @@ public class UtilImpl implements Util {
         return true;
     }
 
+    @Override
+    public long[] testSets(int[] cards, int count) {
+        long[] legal = new long[(count + 63) / 64];
+        if (encoding != null && config.featureSize == 3) {
+            for (int i = 0, c = 0; i < count; ++i, c += 3)
+                if (encoding.isSet(packedCards[cards[c]], packedCards[cards[c + 1]], packedCards[cards[c + 2]]))
+                    legal[i >>> 6] |= 1L << i;
+        } else if (encoding != null) {
+            for (int i = 0; i < count; ++i)
+                if (testPacked(cards, i * config.featureSize))
+                    legal[i >>> 6] |= 1L << i;
+        } else {
+            for (int i = 0; i < count; ++i)
+                if (testSet(Arrays.copyOfRange(cards, i * config.featureSize, (i + 1) * config.featureSize)))
+                    legal[i >>> 6] |= 1L << i;
+        }
+        return legal;
+    }
+
+    @Override
+    public int completeSet(int[] cards) {
+        if (encoding != null && config.featureSize == 3)
+            return encoding.unpack(encoding.third(packedCards[cards[0]], packedCards[cards[1]]));
+
+        int r = config.featureSize;
+        int[][] features = cardsToFeatures(Arrays.copyOf(cards, r - 1));
+        int card = 0;
+        for (int i = 0; i < config.featureCount; ++i) {
+            int value = features[0][i], sum = 0, seen = 0;
+            for (int j = 0; j < r - 1; ++j) {
+                sum += features[j][i];
+                seen |= 1 << features[j][i];
+            }
+            // all same: the same value, all different: the only value missing
+            if (Integer.bitCount(seen) == r - 1) value = r * (r - 1) / 2 - sum;
+            else if (Integer.bitCount(seen) != 1) return -1;
+            card = card * r + value;
+        }
+        return card;
+    }
+
+    /**
+     * Checks the featureSize cards starting at cards[offset] using their packed features: a feature is all same or
+     * all different iff the cards have either 1 or featureSize distinct values in it.
+     */
+    private boolean testPacked(int[] cards, int offset) {
+        int r = config.featureSize;
+        if (r == 3) return encoding.isSet(packedCards[cards[offset]], packedCards[cards[offset + 1]], packedCards[cards[offset + 2]]);
+        for (int f = 0; f < config.featureCount; ++f) {
+            int values = 0;
+            for (int j = 0; j < r; ++j)
+                values |= 1 << CardEncoding.feature(packedCards[cards[offset + j]], f);
+            int distinct = Integer.bitCount(values);
+            if (distinct != 1 && distinct != r) return false;
+        }
+        return true;
+    }
+
     @Override
     public List<int[]> findSets(List<Integer> deck, int count) {
         LinkedList<int[]> sets = new LinkedList<>();
-        int n = deck.size();
+        if (count <= 0) return sets;
+        forEachSet(deck.stream().mapToInt(Integer::intValue).toArray(), set -> {
+            sets.add(set.clone());
+            return sets.size() < count;
+        });
+        return sets;
+    }
+
+    @Override
+    public boolean forEachSet(int[] cards, SetVisitor visitor) {
+        int[] sorted = cards.clone();
+        Arrays.sort(sorted);
+        if (setFinder != null) return setFinder.search(sorted).run(0, sorted.length, visitor);
+
+        int n = sorted.length;
         int r = config.featureSize;
         int[] combination = new int[r];
+        int[] set = new int[r];
 
         for (int i = 0; i < r; ++i)
             combination[i] = i;
 
-        while (combination[r - 1] < deck.size()) {
-            int[] cards = Arrays.stream(combination).map(deck::get).sorted().toArray();
-            if (testSet(cards)) {
-                sets.add(cards);
-                if (sets.size() >= count) return sets;
-            }
+        while (combination[r - 1] < n) {
+            for (int i = 0; i < r; ++i)
+                set[i] = sorted[combination[i]];
+            if (testSet(set) && !visitor.visit(set)) return false;
 
             // generate next combination in lexicographic order
             int t = r - 1;
@@ -87,7 +180,48 @@ public class UtilImpl implements Util {
             combination[t]++;
             for (int i = t + 1; i < r; i++) combination[i] = combination[i - 1] + 1;
         }
-        return sets;
+        return true;
+    }
+
+    @Override
+    public long countSets(int[] cards) {
+        long[] count = {0};
+        forEachSet(cards, set -> {
+            count[0]++;
+            return true;
+        });
+        return count[0];
+    }
+
+    @Override
+    public Spliterator<int[]> setSpliterator(int[] cards) {
+        if (setFinder == null) return findSets(Arrays.stream(cards).boxed().collect(Collectors.toList()), Integer.MAX_VALUE).spliterator();
+        int[] sorted = cards.clone();
+        Arrays.sort(sorted);
+        return new SetSpliterator(setFinder, sorted, 0, sorted.length);
+    }
+
+    @Override
+    public SetStatistics setStatistics(int[] cards) {
+        int[] sorted = cards.clone();
+        Arrays.sort(sorted);
+        if (setFinder != null) {
+            // about 8 parts per worker, so the load stays balanced even if some parts take longer than estimated
+            int parallelism = ForkJoinPool.getCommonPoolParallelism();
+            int splits = 32 - Integer.numberOfLeadingZeros(Math.max(1, parallelism - 1)) + 3;
+            return new SetStatistics(ForkJoinPool.commonPool().invoke(new SetCountTask(setFinder, sorted, 0, sorted.length, splits)));
+        }
+
+        long[] perPattern = new long[1 << config.featureCount];
+        forEachSet(sorted, set -> {
+            int[][] features = cardsToFeatures(set);
+            int pattern = 0;
+            for (int f = 0; f < config.featureCount; ++f)
+                if (features[0][f] != features[1][f]) pattern |= 1 << f;
+            perPattern[pattern]++;
+            return true;
+        });
+        return new SetStatistics(perPattern);
     }
 
     public void spin() {
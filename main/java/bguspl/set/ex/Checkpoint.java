@@ -0,0 +1,172 @@
+package bguspl.set.ex;
+
+import bguspl.set.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot of the game state, in a compact binary form that a crashed game can be resumed from (see Dealer.resume).
+ *
+ * The snapshot holds the deck as a bitset of cards (the deck is shuffled before every deal, so its order does not
+ * matter), the card in each slot, and the score, tokens and freeze of each player. Deadlines are kept as the time left
+ * until them, since the clock of the resumed game is a different one. Numbers are written as varints (7 bits a byte),
+ * and a CRC32 at the end catches a damaged file. A 2 player game with 81 cards takes about 40 bytes.
+ */
+class Checkpoint {
+
+    private static final int VERSION = 1;
+
+    /**
+     * The deck (bit card % 64 of word card / 64), the card in each slot (-1 if none), the scores, the tokens (as in
+     * Player.getTokens), the time left until each player is unfrozen and until the reshuffle (-1 if none), in millis.
+     */
+    final long[] deck;
+    final int[] slotCards;
+    final int[] scores;
+    final long[][] tokens;
+    final long[] freezeMillis;
+    final long reshuffleMillis;
+
+    private Checkpoint(long[] deck, int[] slotCards, int[] scores, long[][] tokens, long[] freezeMillis, long reshuffleMillis) {
+        this.deck = deck;
+        this.slotCards = slotCards;
+        this.scores = scores;
+        this.tokens = tokens;
+        this.freezeMillis = freezeMillis;
+        this.reshuffleMillis = reshuffleMillis;
+    }
+
+    /**
+     * Takes a snapshot of the game (by the thread that owns the deck at the time).
+     *
+     * @param reshuffleTime - the time of the next reshuffle (Long.MAX_VALUE if none).
+     */
+    static Checkpoint capture(Config config, Table table, List<Integer> deck, Player[] players, long reshuffleTime) {
+        long now = System.currentTimeMillis();
+        long[] deckBits = new long[(config.deckSize + 63) / 64];
+        for (int card : deck)
+            deckBits[card >>> 6] |= 1L << card;
+        int[] slotCards = new int[config.tableSize];
+        for (int slot = 0; slot < slotCards.length; slot++) {
+            Integer card = table.slotToCard[slot];
+            slotCards[slot] = card == null ? -1 : card;
+        }
+        int[] scores = new int[players.length];
+        long[][] tokens = new long[players.length][];
+        long[] freezeMillis = new long[players.length];
+        for (int i = 0; i < players.length; i++) {
+            scores[i] = players[i].score();
+            tokens[i] = players[i].getTokens();
+            freezeMillis[i] = Math.max(0, players[i].frozenUntil - now);
+        }
+        long reshuffleMillis = reshuffleTime == Long.MAX_VALUE ? -1 : Math.max(0, reshuffleTime - now);
+        return new Checkpoint(deckBits, slotCards, scores, tokens, freezeMillis, reshuffleMillis);
+    }
+
+    byte[] encode(Config config) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeVarint(out, VERSION);
+        writeVarint(out, config.deckSize);
+        writeVarint(out, config.tableSize);
+        writeVarint(out, scores.length);
+        writeBits(out, deck, config.deckSize);
+        for (int card : slotCards)
+            writeVarint(out, card + 1);
+        for (int i = 0; i < scores.length; i++) {
+            writeVarint(out, scores[i]);
+            writeBits(out, tokens[i], config.tableSize);
+            writeVarint(out, freezeMillis[i]);
+        }
+        writeVarint(out, reshuffleMillis + 1);
+        CRC32 crc = new CRC32();
+        crc.update(out.toByteArray());
+        long checksum = crc.getValue();
+        for (int shift = 24; shift >= 0; shift -= 8)
+            out.write((int) (checksum >>> shift));
+        return out.toByteArray();
+    }
+
+    /**
+     * @return - the checkpoint encoded in data.
+     * @throws IllegalArgumentException - if the data is damaged, or is of a game with other settings.
+     */
+    static Checkpoint decode(byte[] data, Config config) {
+        if (data.length < 4) throw new IllegalArgumentException("checkpoint too short");
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        long checksum = 0;
+        for (int i = data.length - 4; i < data.length; i++)
+            checksum = checksum << 8 | data[i] & 0xFF;
+        if (checksum != crc.getValue()) throw new IllegalArgumentException("checkpoint checksum mismatch");
+
+        Reader in = new Reader(data, data.length - 4);
+        if (in.varint() != VERSION) throw new IllegalArgumentException("unknown checkpoint version");
+        if (in.varint() != config.deckSize || in.varint() != config.tableSize || in.varint() != config.players)
+            throw new IllegalArgumentException("checkpoint of a game with other settings");
+        long[] deck = in.bits(config.deckSize);
+        int[] slotCards = new int[config.tableSize];
+        for (int slot = 0; slot < slotCards.length; slot++)
+            slotCards[slot] = (int) in.varint() - 1;
+        int[] scores = new int[config.players];
+        long[][] tokens = new long[config.players][];
+        long[] freezeMillis = new long[config.players];
+        for (int i = 0; i < config.players; i++) {
+            scores[i] = (int) in.varint();
+            tokens[i] = in.bits(config.tableSize);
+            freezeMillis[i] = in.varint();
+        }
+        long reshuffleMillis = in.varint() - 1;
+        return new Checkpoint(deck, slotCards, scores, tokens, freezeMillis, reshuffleMillis);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        for (; (value & ~0x7FL) != 0; value >>>= 7)
+            out.write((int) (value & 0x7F) | 0x80);
+        out.write((int) value);
+    }
+
+    private static void writeBits(ByteArrayOutputStream out, long[] bits, int count) {
+        for (int i = 0; i < count; i += 8)
+            out.write((int) (bits[i >>> 6] >>> (i & 63)));
+    }
+
+    /**
+     * Reads the fields of a checkpoint in order.
+     */
+    private static class Reader {
+
+        private final byte[] data;
+        private final int end;
+        private int position = 0;
+
+        Reader(byte[] data, int end) {
+            this.data = data;
+            this.end = end;
+        }
+
+        private int next() {
+            if (position >= end) throw new IllegalArgumentException("checkpoint truncated");
+            return data[position++] & 0xFF;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = next();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+                if (shift > 56) throw new IllegalArgumentException("checkpoint varint too long");
+            }
+        }
+
+        long[] bits(int count) {
+            long[] bits = new long[(count + 63) / 64];
+            for (int i = 0; i < count; i += 8)
+                bits[i >>> 6] |= (long) next() << (i & 63);
+            if ((count & 63) != 0) bits[bits.length - 1] &= (1L << count) - 1;
+            return bits;
+        }
+    }
+}
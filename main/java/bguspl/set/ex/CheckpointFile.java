@@ -0,0 +1,105 @@
+package bguspl.set.ex;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * The file that checkpoints are saved to. Checkpoints are written on a background thread, so the game threads only pay
+ * for taking them; when checkpoints come faster than they can be written, only the latest one is written. A
+ * checkpoint replaces the previous one atomically, so a crash while writing leaves the previous one in place.
+ */
+class CheckpointFile {
+
+    private final Logger logger;
+    private final Path path;
+    private final Path tempPath;
+
+    /**
+     * The latest checkpoint that was not written yet (null if none).
+     */
+    private final AtomicReference<byte[]> pending = new AtomicReference<>();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    CheckpointFile(Logger logger, String fileName) {
+        this.logger = logger;
+        path = Paths.get(fileName);
+        tempPath = Paths.get(fileName + ".tmp");
+    }
+
+    /**
+     * Saves a checkpoint in the background.
+     */
+    void write(byte[] checkpoint) {
+        if (writer.isShutdown()) return;
+        if (pending.getAndSet(checkpoint) == null) {
+            try {
+                writer.execute(this::flush);
+            } catch (RejectedExecutionException ignored) {} // (closed meanwhile)
+        }
+    }
+
+    private void flush() {
+        byte[] checkpoint = pending.getAndSet(null);
+        if (checkpoint == null) return;
+        try {
+            Files.write(tempPath, checkpoint);
+            try {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.severe("error writing checkpoint " + path + ": " + e);
+        }
+    }
+
+    /**
+     * @return - the saved checkpoint (null if there is none).
+     */
+    byte[] read() {
+        try {
+            return Files.exists(path) ? Files.readAllBytes(path) : null;
+        } catch (IOException e) {
+            logger.severe("error reading checkpoint " + path + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Stops saving checkpoints, and deletes the saved one (when the game is over, there is nothing to resume).
+     */
+    void delete() {
+        close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.severe("error deleting checkpoint " + path + ": " + e);
+        }
+    }
+
+    /**
+     * Writes the last checkpoint and stops the background thread.
+     */
+    void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {}
+        pending.set(null);
+    }
+}
@@ -1,12 +1,15 @@
 package bguspl.set.ex;
 
 import bguspl.set.Env;
+import bguspl.set.GameEvent;
 
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
 
 
 
@@ -39,12 +42,12 @@ public class Dealer implements Runnable {
     /**
      * The time when the dealer needs to reshuffle the deck due to turn timeout.
      */
-    private long reshuffleTime = Long.MAX_VALUE;
+    private volatile long reshuffleTime = Long.MAX_VALUE;
 
     /**
      * The elapsed time since dealer's last action.
      */
-    private long elapsedTime;
+    private volatile long elapsedTime;
 
     protected int numOfPreparedPlayers = 0;
 
@@ -52,6 +55,49 @@ public class Dealer implements Runnable {
 
     protected Thread[] playersThreads;
 
+    /**
+     * The thread that replaces the cards of legal sets, so claims can be checked while the cards are being replaced.
+     */
+    protected Thread tableThread;
+
+    /**
+     * The slots of legal sets whose cards should be replaced (reserved on the table until they are).
+     */
+    private final LinkedBlockingQueue<LinkedList<Integer>> replacements = new LinkedBlockingQueue<LinkedList<Integer>>();
+
+    /**
+     * The threads that check big batches of possible sets with the dealer thread (null if it checks them alone).
+     */
+    private Verifiers verifiers;
+
+    /**
+     * The smallest batch of possible sets that is worth splitting between the verifiers.
+     */
+    private static final int MIN_PARALLEL_CHECK = 64;
+
+    /**
+     * Where the checkpoints of the game are saved (null if they are not).
+     */
+    private final CheckpointFile checkpoints;
+
+    /**
+     * When the next periodic checkpoint is due (dealer thread only), and whether one is due sooner because of a verdict
+     * or because the table thread could not save one.
+     */
+    private long nextCheckpointTime = 0;
+    private volatile boolean checkpointDue = false;
+
+    /**
+     * The reshuffle time of a resumed game, to be used for its first deal instead of a new one (0 if none).
+     */
+    private long resumedReshuffleTime = 0;
+
+    /**
+     * True iff the table thread could not make sure there is a set on the table, because the slots it needed were
+     * pending (the dealer thread tries again once no slot is pending).
+     */
+    private volatile boolean setNeeded = false;
+
 
     public Dealer(Env env, Table table, Player[] players) {
         this.env = env;
@@ -59,6 +105,59 @@ public class Dealer implements Runnable {
         this.players = players;
         deck = IntStream.range(0, env.config.deckSize).boxed().collect(Collectors.toList());
         this.terminate = false;
+        checkpoints = env.config.checkpointFile.isEmpty() ? null : new CheckpointFile(env.logger, env.config.checkpointFile);
+    }
+
+    /**
+     * Resumes the game from the saved checkpoint, if there is one (before the dealer thread starts).
+     *
+     * @return - true iff the game was resumed.
+     */
+    public boolean resume() {
+        byte[] data = checkpoints == null ? null : checkpoints.read();
+        if (data == null) return false;
+        Checkpoint checkpoint;
+        try {
+            checkpoint = Checkpoint.decode(data, env.config);
+        } catch (IllegalArgumentException e) {
+            env.logger.severe("ignoring checkpoint " + env.config.checkpointFile + ": " + e.getMessage());
+            return false;
+        }
+
+        deck.clear();
+        for (int card = 0; card < env.config.deckSize; card++)
+            if ((checkpoint.deck[card >>> 6] & 1L << card) != 0)
+                deck.add(card);
+        for (int slot = 0; slot < env.config.tableSize; slot++)
+            if (checkpoint.slotCards[slot] >= 0)
+                table.putCard(checkpoint.slotCards[slot], slot);
+        for (int i = 0; i < players.length; i++)
+            players[i].resume(checkpoint.scores[i], checkpoint.tokens[i], checkpoint.freezeMillis[i]);
+        if (checkpoint.reshuffleMillis >= 0)
+            resumedReshuffleTime = System.currentTimeMillis() + checkpoint.reshuffleMillis;
+        env.logger.severe("resumed the game from checkpoint " + env.config.checkpointFile + " (" + data.length + " bytes)");
+        return true;
+    }
+
+    /**
+     * Saves a checkpoint of the game in the background. Only called by the thread that may change the deck at the
+     * time: the table thread while it replaces cards, and the dealer thread otherwise.
+     *
+     * No checkpoint is saved while slots other than the caller's own are pending, or if slots were reserved while it
+     * was taken: the set in them may already be scored while its cards are still on the table, so a resumed game
+     * would score it again.
+     *
+     * @param ownSlots - the pending slots the caller reserved itself.
+     * @return         - true iff a checkpoint was saved.
+     */
+    private boolean checkpoint(List<Integer> ownSlots) {
+        if (checkpoints == null) return true;
+        long reservations = table.reservationsIfNoOtherPending(ownSlots);
+        if (reservations < 0) return false;
+        Checkpoint checkpoint = Checkpoint.capture(env.config, table, deck, players, reshuffleTime);
+        if (table.reservationsIfNoOtherPending(ownSlots) != reservations) return false;
+        checkpoints.write(checkpoint.encode(env.config));
+        return true;
     }
 
     /**
@@ -69,6 +168,10 @@ public class Dealer implements Runnable {
         env.logger.info("Thread " + Thread.currentThread().getName() + " starting.");
         
         dealerThread = Thread.currentThread();
+        tableThread = new Thread(this::replaceSets, "table");
+        tableThread.start();
+        if (env.config.verifierThreads > 0)
+            verifiers = new Verifiers(env.util, env.config.featureSize, env.config.verifierThreads, "verifier");
         Thread[] playersThreads = new Thread[players.length];
         for (int i = 0; i < players.length; i++){
             playersThreads[i] = new Thread(players[i], "player"+i);
@@ -82,15 +185,26 @@ public class Dealer implements Runnable {
             }
         
         while (!shouldFinish()) {
-            placeCardsOnTable();
+            placeCardsOnTable(Collections.emptyList());
             updateTimerDisplay(true);
+            checkpoint(Collections.emptyList());
             timerLoop();
+            awaitReplacements();
             removeAllCardsFromTable();
+            reshuffled();
         }
         
+        tableThread.interrupt();
+        try{
+            tableThread.join();
+        }catch(InterruptedException ignored){}
+        if (verifiers != null)
+            verifiers.terminate();
         if (!terminate){
             terminate();
             announceWinners();
+            if (checkpoints != null)
+                checkpoints.delete(); // (the game is over, there is nothing to resume)
             env.logger.info("Thread " + Thread.currentThread().getName() + " terminated.");
         }
         else
@@ -104,21 +218,115 @@ public class Dealer implements Runnable {
         while (!shouldFinish() && System.currentTimeMillis() < reshuffleTime) {
             sleepUntilWokenOrTimeout();
             updateTimerDisplay(false);
-            LinkedList<Integer> possibleSet = table.getPossibleSet();
-            while (possibleSet != null & !shouldFinish() & System.currentTimeMillis() < reshuffleTime){
-                int possibleSetPlayerId = possibleSet.poll();
-                if (table.isSet(possibleSet)){
-                    players[possibleSetPlayerId].point();
-                    removeCardsFromTable(possibleSet);
-                    placeCardsOnTable();
-                    updateTimerDisplay(true);
-                }
-                else{
-                    players[possibleSetPlayerId].penalty();
-                    updateTimerDisplay(false);
-                }
-                possibleSet = table.getPossibleSet();
+            while (!shouldFinish() & System.currentTimeMillis() < reshuffleTime){
+                LinkedList<LinkedList<Integer>> possibleSets = table.getPossibleSets();
+                if (possibleSets.isEmpty())
+                    break;
+                checkPossibleSets(possibleSets);
+            }
+            if (setNeeded){
+                // (when no slot is pending the table thread is idle, so the deck belongs to the dealer thread)
+                awaitReplacements();
+                setNeeded = false;
+                if (!terminate)
+                    ensureSetOnTable(Collections.emptyList());
+            }
+            // (while slots are pending, the table thread may change the deck, and saves a checkpoint when it is done)
+            if (checkpoints != null && (checkpointDue || System.currentTimeMillis() >= nextCheckpointTime)
+                    && checkpoint(Collections.emptyList())){
+                checkpointDue = false;
+                nextCheckpointTime = System.currentTimeMillis() + env.config.checkpointMillis;
+            }
+        }
+    }
+
+    /**
+     * Checks all the possible sets that were submitted since the last check, in the order the players completed them:
+     * the earliest legal set wins its slots, and later sets that share a slot with it are cancelled.
+     */
+    private void checkPossibleSets(LinkedList<LinkedList<Integer>> possibleSets) {
+        int setSize = env.config.featureSize;
+        possibleSets.sort(Comparator.comparingLong(possibleSet -> players[possibleSet.getFirst()].claimTime));
+
+        // the cards are read without reserving the slots first, so they are checked again when the slots are reserved
+        int[] cards = new int[possibleSets.size() * setSize];
+        int offset = 0;
+        for (LinkedList<Integer> possibleSet : possibleSets)
+            for (int slot : possibleSet.subList(1, possibleSet.size())){
+                Integer card = table.slotToCard[slot];
+                cards[offset++] = card == null ? 0 : card;
+            }
+        long[] legal;
+        if (verifiers == null || possibleSets.size() < MIN_PARALLEL_CHECK)
+            legal = env.util.testSets(cards, possibleSets.size());
+        else{
+            // only the verdicts are computed in parallel: the table is changed below, in the order of the batch
+            int[] shards = new int[possibleSets.size()];
+            int i = 0;
+            for (LinkedList<Integer> possibleSet : possibleSets)
+                shards[i++] = verifiers.shard(possibleSet.subList(1, possibleSet.size()));
+            legal = verifiers.testSets(cards, shards, shards.length);
+        }
+
+        int i = 0;
+        offset = 0;
+        for (LinkedList<Integer> possibleSet : possibleSets){
+            int possibleSetPlayerId = possibleSet.poll();
+            // the slots stay reserved until the table thread replaced their cards
+            boolean reserved = table.reserveSlots(possibleSet);
+            if (reserved && !table.holdsCards(possibleSet, cards, offset)){
+                table.releaseSlots(possibleSet);
+                reserved = false;
+            }
+            if (!reserved)
+                players[possibleSetPlayerId].cancelClaim();
+            else if ((legal[i >>> 6] & 1L << i) != 0){
+                players[possibleSetPlayerId].point();
+                replacements.add(possibleSet);
+            }
+            else{
+                table.releaseSlots(possibleSet);
+                players[possibleSetPlayerId].penalty();
+                updateTimerDisplay(false);
+                checkpointDue = true;
+            }
+            i++;
+            offset += setSize;
+        }
+    }
+
+    /**
+     * The main loop of the table thread: replaces the cards of the legal sets found by the dealer thread.
+     */
+    private void replaceSets() {
+        env.logger.info("Thread " + Thread.currentThread().getName() + " starting.");
+        while (!terminate) {
+            LinkedList<Integer> slots;
+            try{
+                slots = replacements.take();
+            }catch(InterruptedException ignored){
+                break;
             }
+            removeCardsFromTable(slots);
+            placeCardsOnTable(slots);
+            updateTimerDisplay(true);
+            if (!checkpoint(slots))
+                checkpointDue = true; // (the dealer thread saves one when no slot is pending)
+            table.releaseSlots(slots);
+            dealerThread.interrupt(); // the game may be over
+        }
+        env.logger.info("Thread " + Thread.currentThread().getName() + " terminated.");
+    }
+
+    /**
+     * Waits until the table thread replaced the cards of all the legal sets found so far.
+     */
+    private void awaitReplacements() {
+        while (!terminate){
+            try{
+                table.awaitNoPendingSlots();
+                return;
+            }catch(InterruptedException ignored){}
         }
     }
 
@@ -134,6 +342,8 @@ public class Dealer implements Runnable {
             }catch(InterruptedException ignored){};
         }
         terminate = true;
+        if (tableThread != null)
+            tableThread.interrupt();
         dealerThread.interrupt(); 
  
     }
@@ -144,7 +354,17 @@ public class Dealer implements Runnable {
      * @return true iff the game should be finished.
      */
     protected boolean shouldFinish() {
-        return terminate || (env.util.findSets(deck, 1).size() == 0 & !table.setCanBeFound());
+        // while cards are being replaced the deck and the table belong to the table thread
+        return terminate || (!table.hasPendingSlots() && env.util.findSets(deck, 1).size() == 0 & !table.setCanBeFound());
+    }
+
+    /**
+     * Publishes the number of sets left in the deck, after all the cards were returned to it (only when it is wanted).
+     */
+    private void reshuffled() {
+        if (terminate || !env.events.hasSubscribers()) return;
+        long sets = env.util.countSets(deck.stream().mapToInt(Integer::intValue).toArray());
+        if (sets > 0) env.events.publish(GameEvent.Type.RESHUFFLE, -1, -1, -1, (int) sets);
     }
 
     /**
@@ -155,29 +375,22 @@ public class Dealer implements Runnable {
         try{
             table.possibleSetsSem.acquire();
         }catch(InterruptedException ignored){}
-        table.isAvailable.set(false);
-        for (Player player : players){
-            try{
-                player.tokensSem.acquire();
-            }catch(InterruptedException ignored){}
-            player.clearKeyPresses();
-        }
+        // only the players with a token on one of the cards are affected
         for (int i = 0; i<slots.size(); i++){
-            for (Player player : players){
-                player.removeToken(slots.get(i));
+            for (int player : table.playersWithTokens(slots.get(i))){
+                players[player].removeToken(slots.get(i));
             }
             table.removeCard(slots.get(i), players);
         }
-        for (Player player : players){
-            player.tokensSem.release();
-        }
         table.possibleSetsSem.release();
     }
 
     /**
      * Check if any cards can be removed from the deck and placed on the table.
+     *
+     * @param ownSlots - the pending slots the caller reserved itself (the cards placed in them are not about to go).
      */
-    private void placeCardsOnTable() {
+    private void placeCardsOnTable(List<Integer> ownSlots) {
         // TODO implement
         boolean isDeckEmpty = deck.isEmpty();
         Collections.shuffle(deck);
@@ -187,22 +400,15 @@ public class Dealer implements Runnable {
         Collections.shuffle(slotsList);
         for (int index = 0; index<(env.config.tableSize) & !isDeckEmpty; index++){
             if (table.isSlotNull(slotsList.get(index))) {
-                table.placeCard(deck.get(0), slotsList.get(index));
-                deck.remove(0);
+                table.placeCard(deck.remove(deck.size() - 1), slotsList.get(index));
                 isDeckEmpty = deck.isEmpty();
             }
         }
-        if (env.config.turnTimeoutMillis <= 0){
-            if (!table.setCanBeFound()){
-                removeAllCardsFromTable();
-                if (!shouldFinish())
-                    placeCardsOnTable();
-                else
-                    return;
-            }
-        }
+        if (env.config.turnTimeoutMillis <= 0)
+            ensureSetOnTable(ownSlots);
         if (env.config.turnTimeoutMillis > 0)
-            reshuffleTime = System.currentTimeMillis() + env.config.turnTimeoutMillis; 
+            reshuffleTime = resumedReshuffleTime > 0 ? resumedReshuffleTime : System.currentTimeMillis() + env.config.turnTimeoutMillis;
+        resumedReshuffleTime = 0;
         if (env.config.turnTimeoutMillis == 0)
             elapsedTime = System.currentTimeMillis();
         if (!terminate){
@@ -213,6 +419,105 @@ public class Dealer implements Runnable {
         }
     }
 
+    /**
+     * Makes sure there is a legal set on the table if there is one among the cards on the table and in the deck, by
+     * replacing as few cards on the table as possible with cards from the deck. The replaced cards go back to the deck.
+     * The cards in pending slots are about to be removed, so they are not counted (other than the caller's own); if
+     * too few slots can be reserved for the cards from the deck, the dealer thread tries again when none is pending.
+     *
+     * @param ownSlots - the pending slots the caller reserved itself.
+     */
+    private void ensureSetOnTable(List<Integer> ownSlots) {
+        int setSize = env.config.featureSize;
+        if (setSize < 3 || deck.isEmpty()) return;
+        int[] tableCards = table.cardsNotPending(ownSlots);
+        if (!env.util.forEachSet(tableCards, set -> false)) return;
+
+        int[] set = new int[setSize];
+        int fromTable = findDealableSet(env, tableCards, deck, set);
+        if (fromTable >= 0 && !replaceCards(set, fromTable))
+            setNeeded = true;
+    }
+
+    /**
+     * Finds a legal set of cards from the table and the deck, that takes as few cards from the deck as possible.
+     *
+     * @param set - receives the set: first the cards that are on the table, then the cards that are in the deck.
+     * @return    - the number of cards of the set that are on the table, or -1 if there is no such set.
+     */
+    static int findDealableSet(Env env, int[] tableCards, List<Integer> deck, int[] set) {
+        int setSize = set.length;
+        int[] deckCards = deck.stream().mapToInt(Integer::intValue).toArray();
+        boolean[] inDeck = new boolean[env.config.deckSize];
+        for (int card : deckCards)
+            inDeck[card] = true;
+
+        // set[0..fromTable) are kept on the table, the rest of the set is dealt from the deck
+        for (int fromTable = Math.min(setSize - 1, tableCards.length); fromTable >= 0; fromTable--) {
+            if (setSize - fromTable > deckCards.length) break;
+            if (findSet(env, set, 0, fromTable, tableCards, deckCards, 0, inDeck))
+                return fromTable;
+        }
+        return -1;
+    }
+
+    /**
+     * Chooses set[k..setSize - 1) from the table (while k < fromTable) and then from the deck, and checks whether the
+     * card that completes them is in the deck.
+     *
+     * @return - true iff a set was found (and is in set).
+     */
+    private static boolean findSet(Env env, int[] set, int k, int fromTable, int[] tableCards, int[] deckCards, int start, boolean[] inDeck) {
+        if (k == set.length - 1) {
+            int last = env.util.completeSet(set);
+            if (last < 0 || !inDeck[last]) return false;
+            set[k] = last;
+            return true;
+        }
+        int[] cards = k < fromTable ? tableCards : deckCards;
+        for (int i = start; i < cards.length; i++) {
+            set[k] = cards[i];
+            if (findSet(env, set, k + 1, fromTable, tableCards, deckCards, k + 1 == fromTable ? 0 : i + 1, inDeck))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replaces random cards on the table, other than set[0..fromTable), with the cards set[fromTable..].
+     *
+     * @return - true iff the cards were replaced (false if not enough slots could be reserved, and nothing changed).
+     */
+    private boolean replaceCards(int[] set, int fromTable) {
+        LinkedList<Integer> slotsList = new LinkedList<Integer>();
+        for (int i = 0; i<env.config.tableSize; i++)
+            slotsList.add(i);
+        Collections.shuffle(slotsList);
+        LinkedList<Integer> slots = new LinkedList<Integer>();
+        for (int slot : slotsList) {
+            Integer card = table.slotToCard[slot];
+            boolean kept = false;
+            for (int i = 0; i < fromTable & !kept; i++)
+                kept = card != null && card == set[i];
+            // (slots of sets that were just found are already reserved by the dealer thread)
+            if (card != null & !kept & slots.size() < set.length - fromTable && table.reserveSlots(Collections.singletonList(slot)))
+                slots.add(slot);
+        }
+        if (slots.size() < set.length - fromTable){
+            table.releaseSlots(slots);
+            return false;
+        }
+        for (int slot : slots)
+            deck.add(table.slotToCard[slot]);
+        removeCardsFromTable(slots);
+        for (int i = 0; i < slots.size(); i++) {
+            deck.remove(Integer.valueOf(set[fromTable + i]));
+            table.placeCard(set[fromTable + i], slots.get(i));
+        }
+        table.releaseSlots(slots);
+        return true;
+    }
+
     /**
      * Sleep for a fixed amount of time or until the thread is awakened for some purpose.
      */
@@ -259,9 +564,6 @@ public class Dealer implements Runnable {
         }catch(InterruptedException ignored){};
         table.isAvailable.set(false);
         for (Player player : players){
-            try{
-                player.tokensSem.acquire();
-            }catch(InterruptedException ignored){};
             player.removeAllTokens(); 
         }
         table.removeAllTokens();
@@ -273,12 +575,6 @@ public class Dealer implements Runnable {
             Integer removedCard = table.removeCard(slotsList.get(index), players);
             if (removedCard != null)
                 deck.add(removedCard);
-            for (Player player : players){
-                player.clearKeyPresses();
-            }
-        }
-        for (Player player : players){
-            player.tokensSem.release();
         }
         table.possibleSetsSem.release();
     }
@@ -288,21 +584,22 @@ public class Dealer implements Runnable {
      */
     private void announceWinners() {
         // TODO implement
-        Integer maxScore = 0;
-        List<Integer> winnersId= new LinkedList<Integer>();
-        for (Player player : players){ 
-            if (player.score() > maxScore){
-                maxScore = player.score();
-                winnersId = new LinkedList<Integer>();
-                winnersId.add(player.id);
-            }
-            else if (player.score() == maxScore)
-                winnersId.add(player.id);
+        int maxScore = 0;
+        for (Player player : players)
+            maxScore = Math.max(maxScore, player.score());
+        int winnerCount = 0;
+        for (Player player : players){
+            env.events.publish(GameEvent.Type.FINAL_SCORE, player.id, -1, -1, player.score());
+            if (player.score() == maxScore)
+                winnerCount++;
         }
-        int[] finalWinnersId = new int[winnersId.size()];
-        for (int i = 0; i<winnersId.size(); i++)
-            finalWinnersId[i] = winnersId.get(i);
-        env.ui.announceWinner(finalWinnersId);
+        int[] winners = new int[winnerCount];
+        for (int i = 0, n = 0; i < players.length; i++)
+            if (players[i].score() == maxScore)
+                winners[n++] = players[i].id;
+        env.ui.announceWinner(winners);
+        for (int winner : winners)
+            env.events.publish(GameEvent.Type.WINNER, winner, -1, -1, winners.length);
     }
 
     public boolean arePlayersReady(){
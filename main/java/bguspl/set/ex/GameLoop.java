@@ -0,0 +1,444 @@
+package bguspl.set.ex;
+
+import bguspl.set.Env;
+import bguspl.set.GameEvent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Runs a whole game on a single thread, as an alternative to the thread per player model of Dealer and Player.
+ *
+ * Key presses, computer player moves, timers and the dealer's actions are all events, handled one at a time by the
+ * loop thread. The table and the players' state are only touched by the loop thread, so they need no synchronization:
+ * the players and the dealer are state machines that change only when the loop handles one of their events.
+ */
+public class GameLoop implements Runnable {
+
+    /**
+     * The game environment object.
+     */
+    private final Env env;
+
+    /**
+     * Game entities.
+     */
+    private final Table table;
+    private final Player[] players;
+
+    /**
+     * The list of card ids that are left in the dealer's deck.
+     */
+    private final List<Integer> deck;
+
+    /**
+     * True iff game should be terminated.
+     */
+    protected volatile boolean terminate;
+
+    /**
+     * Events from other threads (i.e. key presses), handled in the order they arrived.
+     */
+    private final LinkedBlockingQueue<Runnable> events = new LinkedBlockingQueue<Runnable>();
+
+    /**
+     * Events of the loop thread that are due at some time, handled in the order of their due times.
+     */
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private long timersScheduled = 0;
+
+    /**
+     * Changes to the table that wait for the table delay. Players cannot act while there are any.
+     */
+    private final ArrayDeque<TableChange> tableChanges = new ArrayDeque<TableChange>();
+    private boolean tableBusy = false;
+
+    /**
+     * The computer players that wait for the table changes to end.
+     */
+    private final List<Integer> waitingComputers = new ArrayList<Integer>();
+
+    /**
+     * tokens[player][slot] is true iff the player has a token on the slot.
+     */
+    private final boolean[][] tokens;
+    private final int[] tokenCounts;
+
+    private final int[] scores;
+
+    /**
+     * The time each player is frozen until.
+     */
+    private final long[] frozenUntil;
+
+    /**
+     * The earliest time of the next key press of each computer player (see Config.computerMoveMillis).
+     */
+    private final long[] nextComputerMove;
+
+    /**
+     * The time when the dealer needs to reshuffle the deck due to turn timeout.
+     */
+    private long reshuffleTime = Long.MAX_VALUE;
+
+    /**
+     * The time of the dealer's last action.
+     */
+    private long elapsedTime;
+
+    public GameLoop(Env env, Table table, Player[] players) {
+        this.env = env;
+        this.table = table;
+        this.players = players;
+        deck = IntStream.range(0, env.config.deckSize).boxed().collect(Collectors.toList());
+        tokens = new boolean[players.length][env.config.tableSize];
+        tokenCounts = new int[players.length];
+        scores = new int[players.length];
+        frozenUntil = new long[players.length];
+        nextComputerMove = new long[players.length];
+    }
+
+    /**
+     * The loop thread starts here.
+     */
+    @Override
+    public void run() {
+        env.logger.info("Thread " + Thread.currentThread().getName() + " starting.");
+
+        deal();
+        schedule(0, this::timerTick);
+        for (int player = env.config.humanPlayers; player < players.length; player++){
+            int computer = player;
+            schedule(0, () -> computerMove(computer));
+        }
+
+        while (!terminate) {
+            Runnable event = events.poll();
+            if (event == null) {
+                Timer timer = timers.peek();
+                long wait = timer == null ? Long.MAX_VALUE : timer.time - System.currentTimeMillis();
+                if (wait <= 0) {
+                    timers.poll().action.run();
+                    continue;
+                }
+                try {
+                    event = events.poll(wait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ignored) {}
+                if (event == null) continue;
+            }
+            event.run();
+        }
+        env.logger.info("Thread " + Thread.currentThread().getName() + " terminated.");
+    }
+
+    /**
+     * Called when the game should be terminated (from any thread).
+     */
+    public void terminate() {
+        terminate = true;
+        events.add(() -> {}); // wakes the loop up
+    }
+
+    /**
+     * Called when a player presses a key (from any thread).
+     *
+     * @param player - the player id.
+     * @param slot   - the slot corresponding to the key pressed.
+     */
+    public void keyPressed(int player, int slot) {
+        events.add(() -> playerAction(player, slot));
+    }
+
+    private void schedule(long delay, Runnable action) {
+        timers.add(new Timer(System.currentTimeMillis() + delay, timersScheduled++, action));
+    }
+
+    /**
+     * Places or removes a token of a player, and checks the player's set once it has a token on featureSize cards.
+     */
+    private void playerAction(int player, int slot) {
+        if (tableBusy || frozenUntil[player] > System.currentTimeMillis() || table.isSlotNull(slot)) return;
+
+        if (tokens[player][slot]) {
+            tokens[player][slot] = false;
+            tokenCounts[player]--;
+            table.removeToken(player, slot);
+        } else if (tokenCounts[player] < env.config.featureSize) {
+            tokens[player][slot] = true;
+            tokenCounts[player]++;
+            table.placeToken(player, slot);
+            if (tokenCounts[player] == env.config.featureSize)
+                checkSet(player);
+        }
+    }
+
+    private void checkSet(int player) {
+        int[] slots = IntStream.range(0, env.config.tableSize).filter(slot -> tokens[player][slot]).toArray();
+        int[] cards = IntStream.of(slots).map(slot -> table.slotToCard[slot]).toArray();
+        env.events.publish(GameEvent.Type.SET_CLAIMED, player, -1, -1, 0);
+        if (env.util.testSet(cards)) {
+            scores[player]++;
+            env.ui.setScore(player, scores[player]);
+            env.events.publish(GameEvent.Type.POINT, player, -1, -1, scores[player]);
+            freeze(player, env.config.pointFreezeMillis);
+            for (int slot : slots)
+                changeTable(env.config.tableDelayMillis, () -> removeCard(slot));
+            changeTable(0, this::deal);
+        }
+        else {
+            env.events.publish(GameEvent.Type.PENALTY, player, -1, -1, 0);
+            freeze(player, env.config.penaltyFreezeMillis);
+        }
+    }
+
+    private void freeze(int player, long millis) {
+        frozenUntil[player] = System.currentTimeMillis() + millis;
+        env.ui.setFreeze(player, millis);
+        if (millis > 0)
+            schedule(Math.min(1000, millis), () -> freezeTick(player));
+    }
+
+    private void freezeTick(int player) {
+        long left = Math.max(0, frozenUntil[player] - System.currentTimeMillis());
+        env.ui.setFreeze(player, left);
+        if (left > 0)
+            schedule(Math.min(1000, left), () -> freezeTick(player));
+    }
+
+    /**
+     * Presses a random key for a computer player, and schedules its next move for when the state the press left the
+     * player in allows it: after the pacing delay, once the player is unfrozen and the table is not being changed.
+     */
+    private void computerMove(int player) {
+        long now = System.currentTimeMillis();
+        long wait = Math.max(frozenUntil[player], nextComputerMove[player]) - now;
+        if (wait > 0)
+            schedule(wait, () -> computerMove(player));
+        else if (tableBusy)
+            waitingComputers.add(player);
+        else {
+            playerAction(player, ThreadLocalRandom.current().nextInt(env.config.tableSize));
+            nextComputerMove[player] = now + env.config.computerMoveMillis;
+            if (tableBusy)
+                waitingComputers.add(player); // (the press found a set)
+            else
+                schedule(Math.max(frozenUntil[player], nextComputerMove[player]) - now, () -> computerMove(player));
+        }
+    }
+
+    /**
+     * Adds a change to the table, to be done after the given delay from the previous change.
+     */
+    private void changeTable(long delay, Runnable change) {
+        tableChanges.add(new TableChange(delay, change));
+        if (!tableBusy) {
+            tableBusy = true;
+            schedule(delay, this::nextTableChange);
+        }
+    }
+
+    private void nextTableChange() {
+        tableChanges.poll().change.run();
+        if (!tableChanges.isEmpty()) {
+            schedule(tableChanges.peek().delay, this::nextTableChange);
+            return;
+        }
+        tableBusy = false;
+        for (int player : waitingComputers)
+            schedule(0, () -> computerMove(player));
+        waitingComputers.clear();
+    }
+
+    /**
+     * Removes a card from the table, along with all the tokens on it.
+     *
+     * @return - the card removed (null if the slot was empty).
+     */
+    private Integer removeCard(int slot) {
+        Integer card = table.takeCard(slot);
+        for (int player : table.playersWithTokens(slot)) {
+            tokens[player][slot] = false;
+            tokenCounts[player]--;
+            table.removeToken(player, slot);
+        }
+        return card;
+    }
+
+    /**
+     * Places cards from the deck in the empty slots.
+     */
+    private void deal() {
+        Collections.shuffle(deck);
+        LinkedList<Integer> slotsList = new LinkedList<Integer>();
+        for (int i = 0; i < env.config.tableSize; i++)
+            slotsList.add(i);
+        Collections.shuffle(slotsList);
+        for (int slot : slotsList)
+            if (table.isSlotNull(slot) && !deck.isEmpty()) {
+                int card = deck.remove(deck.size() - 1);
+                changeTable(env.config.tableDelayMillis, () -> table.putCard(card, slot));
+            }
+        changeTable(0, this::dealt);
+    }
+
+    /**
+     * Called when the cards were dealt: makes sure there is a set on the table (without a turn timeout), or ends the
+     * game if there are no sets left.
+     */
+    private void dealt() {
+        int setSize = env.config.featureSize;
+        if (env.config.turnTimeoutMillis <= 0 && setSize >= 3 && !deck.isEmpty() && !table.setCanBeFound()) {
+            int[] set = new int[setSize];
+            int fromTable = Dealer.findDealableSet(env, table.cardsOnTable(), deck, set);
+            if (fromTable >= 0) {
+                replaceCards(set, fromTable);
+                return;
+            }
+        }
+
+        if (env.util.findSets(deck, 1).isEmpty() && !table.setCanBeFound()) {
+            announceWinners();
+            terminate = true;
+            return;
+        }
+        if (env.config.turnTimeoutMillis > 0)
+            reshuffleTime = System.currentTimeMillis() + env.config.turnTimeoutMillis;
+        if (env.config.turnTimeoutMillis == 0)
+            elapsedTime = System.currentTimeMillis();
+        updateTimerDisplay(true);
+    }
+
+    /**
+     * Replaces random cards on the table, other than set[0..fromTable), with the cards set[fromTable..].
+     */
+    private void replaceCards(int[] set, int fromTable) {
+        List<Integer> slotsList = IntStream.range(0, env.config.tableSize).boxed().collect(Collectors.toList());
+        Collections.shuffle(slotsList);
+        int replaced = 0;
+        for (int slot : slotsList) {
+            Integer card = table.slotToCard[slot];
+            boolean kept = false;
+            for (int i = 0; i < fromTable & !kept; i++)
+                kept = card != null && card == set[i];
+            if (card == null || kept || replaced == set.length - fromTable) continue;
+
+            int newCard = set[fromTable + replaced++];
+            deck.remove(Integer.valueOf(newCard));
+            changeTable(env.config.tableDelayMillis, () -> deck.add(removeCard(slot)));
+            changeTable(env.config.tableDelayMillis, () -> table.putCard(newCard, slot));
+        }
+        changeTable(0, this::dealt);
+    }
+
+    /**
+     * Returns all the cards from the table to the deck, and deals again.
+     */
+    private void reshuffle() {
+        reshuffleTime = Long.MAX_VALUE;
+        if (env.events.hasSubscribers()) {
+            int[] cards = IntStream.concat(deck.stream().mapToInt(Integer::intValue), IntStream.of(table.cardsOnTable())).toArray();
+            long sets = env.util.countSets(cards);
+            if (sets > 0) env.events.publish(GameEvent.Type.RESHUFFLE, -1, -1, -1, (int) sets);
+        }
+        for (int player = 0; player < players.length; player++) {
+            tokens[player] = new boolean[env.config.tableSize];
+            tokenCounts[player] = 0;
+        }
+        table.removeAllTokens();
+        List<Integer> slotsList = IntStream.range(0, env.config.tableSize).boxed().collect(Collectors.toList());
+        Collections.shuffle(slotsList);
+        for (int slot : slotsList)
+            if (!table.isSlotNull(slot))
+                changeTable(env.config.tableDelayMillis, () -> deck.add(removeCard(slot)));
+        changeTable(0, this::deal);
+    }
+
+    /**
+     * Updates the countdown display, and reshuffles the deck when the countdown is over.
+     */
+    private void timerTick() {
+        if (terminate) return;
+        long now = System.currentTimeMillis();
+        if (!tableBusy && now >= reshuffleTime)
+            reshuffle();
+        else if (!tableBusy)
+            updateTimerDisplay(false);
+
+        long delay = env.config.turnTimeoutMillis > 0 && reshuffleTime - now <= env.config.turnTimeoutWarningMillis ? 10 : 999;
+        if (reshuffleTime > now) delay = Math.min(delay, reshuffleTime - now);
+        schedule(delay, this::timerTick);
+    }
+
+    /**
+     * Reset and/or update the countdown and the countdown display.
+     */
+    private void updateTimerDisplay(boolean reset) {
+        if (env.config.turnTimeoutMillis > 0){
+            if (reset)
+                env.ui.setCountdown(env.config.turnTimeoutMillis, false);
+            else{
+                long currTime = reshuffleTime - System.currentTimeMillis();
+                env.ui.setCountdown(Math.max(0, currTime), (currTime <= env.config.turnTimeoutWarningMillis));
+            }
+        }
+        if (env.config.turnTimeoutMillis == 0)
+            env.ui.setElapsed(System.currentTimeMillis() - elapsedTime);
+    }
+
+    /**
+     * Check who is/are the winner/s and displays them.
+     */
+    private void announceWinners() {
+        int maxScore = IntStream.of(scores).max().orElse(0);
+        int[] winners = IntStream.range(0, scores.length).filter(player -> scores[player] == maxScore).toArray();
+        for (int player = 0; player < scores.length; player++)
+            env.events.publish(GameEvent.Type.FINAL_SCORE, player, -1, -1, scores[player]);
+        env.ui.announceWinner(winners);
+        for (int winner : winners)
+            env.events.publish(GameEvent.Type.WINNER, winner, -1, -1, winners.length);
+    }
+
+    /**
+     * An event of the loop thread that is due at some time.
+     */
+    private static class Timer implements Comparable<Timer> {
+
+        final long time;
+        final long order;
+        final Runnable action;
+
+        Timer(long time, long order, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return time != other.time ? Long.compare(time, other.time) : Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * A change to the table, to be done some delay after the previous one.
+     */
+    private static class TableChange {
+
+        final long delay;
+        final Runnable change;
+
+        TableChange(long delay, Runnable change) {
+            this.delay = delay;
+            this.change = change;
+        }
+    }
+}
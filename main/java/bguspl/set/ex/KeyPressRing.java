@@ -0,0 +1,156 @@
+package bguspl.set.ex;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue of key presses from a single producer thread (the ui thread for a human player, or the ai thread
+ * for a computer player) to a single consumer thread (the player thread), without locks.
+ *
+ * The producer publishes a press by advancing tail and the consumer takes it by advancing head, so each of them is
+ * written by one thread only. A key pressed again before its previous press was taken cancels out with it, since both
+ * presses would just toggle the same token. Waiting (for a press, or for room) is done by parking the waiting thread.
+ */
+class KeyPressRing {
+
+    /**
+     * The slot of a press that was cancelled or already taken.
+     */
+    private static final int CANCELLED = -1;
+
+    private final int capacity;
+
+    /**
+     * The slot, the slot's table epoch and the time (System.nanoTime) of each press, by sequence number % capacity.
+     */
+    private final AtomicIntegerArray slots;
+    private final int[] epochs;
+    private final long[] times;
+
+    /**
+     * The sequence number of the next press to take (written by the consumer only).
+     */
+    private volatile long head = 0;
+
+    /**
+     * The sequence number of the next press to publish (written by the producer only).
+     */
+    private volatile long tail = 0;
+
+    /**
+     * Presses with a lower sequence number were cleared, and will be skipped by the consumer.
+     */
+    private volatile long clearedBefore = 0;
+
+    /**
+     * The threads that are parked waiting for a press or for room (null if none).
+     */
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+
+    /**
+     * The epoch and the time of the last press taken (consumer only).
+     */
+    private int lastPressEpoch;
+    private long lastPressTime;
+
+    KeyPressRing(int capacity) {
+        this.capacity = capacity;
+        slots = new AtomicIntegerArray(capacity);
+        epochs = new int[capacity];
+        times = new long[capacity];
+    }
+
+    /**
+     * Adds a press without waiting (producer only).
+     *
+     * @param slot  - the slot of the key pressed.
+     * @param epoch - the table epoch of the slot when the key was pressed (see Table.slotEpoch).
+     * @return      - false iff there is no room for the press.
+     */
+    boolean offer(int slot, int epoch) {
+        long t = tail;
+        // pressing the same key twice in a row cancels out, unless the first press was already taken (or cleared)
+        int last = (int) ((t - 1) % capacity);
+        if (t > head && t - 1 >= clearedBefore && epochs[last] == epoch && slots.compareAndSet(last, slot, CANCELLED))
+            return true;
+        if (t - head >= capacity) return false;
+
+        int i = (int) (t % capacity);
+        epochs[i] = epoch;
+        times[i] = System.nanoTime();
+        slots.set(i, slot);
+        tail = t + 1;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+        return true;
+    }
+
+    /**
+     * Adds a press, waiting for room if needed (producer only).
+     */
+    void put(int slot, int epoch) throws InterruptedException {
+        while (!offer(slot, epoch)) {
+            waitingProducer = Thread.currentThread();
+            if (tail - head >= capacity) LockSupport.park(this);
+            waitingProducer = null;
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Takes the oldest press, waiting for one if needed (consumer only).
+     *
+     * @return - the slot of the key pressed.
+     */
+    int take() throws InterruptedException {
+        while (true) {
+            long h = head;
+            if (h < tail) {
+                int i = (int) (h % capacity);
+                int slot = slots.getAndSet(i, CANCELLED); // (so the producer cannot cancel it anymore)
+                int epoch = epochs[i];
+                long time = times[i];
+                head = h + 1;
+                Thread producer = waitingProducer;
+                if (producer != null) LockSupport.unpark(producer);
+                if (slot == CANCELLED || h < clearedBefore) continue;
+                lastPressEpoch = epoch;
+                lastPressTime = time;
+                return slot;
+            }
+            waitingConsumer = Thread.currentThread();
+            if (head >= tail) LockSupport.park(this);
+            waitingConsumer = null;
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Drops all the presses published so far (from any thread).
+     */
+    void clear() {
+        clearedBefore = tail;
+    }
+
+    /**
+     * @return - the number of presses that were published and not taken yet (including cancelled and cleared ones).
+     */
+    int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return - the table epoch of the slot of the last press taken, when it was made (consumer only).
+     */
+    int lastPressEpoch() {
+        return lastPressEpoch;
+    }
+
+    /**
+     * @return - the time (System.nanoTime) the last press taken was made (consumer only).
+     */
+    long lastPressTime() {
+        return lastPressTime;
+    }
+}
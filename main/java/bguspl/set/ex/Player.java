@@ -1,9 +1,10 @@
 package bguspl.set.ex;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Arrays;
 import java.util.LinkedList;
 import bguspl.set.Env;
-import java.util.concurrent.Semaphore;
+import bguspl.set.GameEvent;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * This class manages the players' threads and data
@@ -43,6 +44,11 @@ public class Player implements Runnable {
      */
     private final boolean human;
 
+    /**
+     * True iff the player plays from a network client (see GameServer), whose key presses replace the keyboard's.
+     */
+    private volatile boolean remote;
+
     /**
      * True iff game should be terminated.
      */
@@ -53,27 +59,43 @@ public class Player implements Runnable {
      */
     private int score;
 
-     /**
-     * Player's current tokens.
+    /**
+     * Player's current tokens: bit (slot % 64) of word (slot / 64) is set iff the player has a token on the slot.
+     * Only the player thread places tokens, but the dealer may remove them at any time.
      */
-    private LinkedList<Integer> tokens;
+    private final AtomicLongArray tokens;
 
     /**
      * Player's key presses.
      */
-    protected final LinkedBlockingQueue<Integer> keyPresses;
+    protected final KeyPressRing keyPresses;
 
     /**
      * How long should player be frozen.
      */
     private long freezeTimer;
 
+    /**
+     * The time (System.currentTimeMillis) the player is frozen until, for filtering key presses before they are queued.
+     */
+    protected volatile long frozenUntil;
+
+    /**
+     * The number of key presses by the highest bit of the time from the press until its token was placed or removed (in
+     * nanoseconds), and the longest such time (player thread only).
+     */
+    private final long[] inputLatencies = new long[64];
+    private long maxInputLatencyNanos;
+
     /**
      * Game's dealer
      */
     private Dealer dealer;
 
-    protected Semaphore tokensSem = new Semaphore(1, true);
+    /**
+     * The game loop, if the game runs on a single thread (null otherwise).
+     */
+    private GameLoop gameLoop;
 
     protected boolean isAiReady = false;
 
@@ -83,6 +105,16 @@ public class Player implements Runnable {
 
     protected LinkedList<Integer> possibleSet = new LinkedList<Integer>();
 
+    /**
+     * True iff the player was resumed with a token on featureSize cards, so its claim should be submitted again.
+     */
+    private boolean resumedClaim = false;
+
+    /**
+     * When the player placed the last token of its possible set (System.nanoTime).
+     */
+    protected volatile long claimTime;
+
 
     /**
      * True if player should wait for response
@@ -104,10 +136,24 @@ public class Player implements Runnable {
         this.id = id;
         this.human = human;
         this.dealer = dealer;
-        this.tokens = new LinkedList<Integer>();
+        this.tokens = new AtomicLongArray((env.config.tableSize + 63) / 64);
         this.freezeTimer = -1;
         this.shouldWait = false;
-        this.keyPresses = new LinkedBlockingQueue<Integer>(env.config.featureSize);
+        this.keyPresses = new KeyPressRing(env.config.featureSize);
+    }
+
+    /**
+     * The class constructor for a game that runs on a single thread (the player thread is not used).
+     *
+     * @param env      - the environment object.
+     * @param gameLoop - the game loop object.
+     * @param table    - the table object.
+     * @param id       - the id of the player.
+     * @param human    - true iff the player is a human player (i.e. input is provided manually, via the keyboard).
+     */
+    public Player(Env env, GameLoop gameLoop, Table table, int id, boolean human) {
+        this(env, (Dealer) null, table, id, human);
+        this.gameLoop = gameLoop;
     }
 
     /**
@@ -169,8 +215,38 @@ public class Player implements Runnable {
                 aiThread.join();
             }catch(InterruptedException ignored){};
         }
+        long presses = Arrays.stream(inputLatencies).sum();
+        if (presses > 0)
+            env.logger.info("player " + (id + 1) + " input latency: " + presses + " presses, median < "
+                    + inputLatencyNanos(0.5) / 1000 + "us, 99% < " + inputLatencyNanos(0.99) / 1000 + "us, max "
+                    + maxInputLatencyNanos / 1000 + "us");
         env.logger.info("Thread " + Thread.currentThread().getName() + " terminated.");
     }
+
+    /**
+     * @param quantile - the part of the key presses (e.g. 0.99).
+     * @return         - the time from a key press until its token was placed or removed that this part of the presses
+     *                   took less than (in nanoseconds, rounded up to a power of 2), 0 if no key was pressed. Only
+     *                   up to date on the player thread, or once it terminated.
+     */
+    public long inputLatencyNanos(double quantile) {
+        long presses = Arrays.stream(inputLatencies).sum();
+        long count = 0;
+        for (int bit = 0; bit < inputLatencies.length; bit++) {
+            count += inputLatencies[bit];
+            if (count > 0 && count >= quantile * presses)
+                return bit == 63 ? Long.MAX_VALUE : 2L << bit;
+        }
+        return 0;
+    }
+
+    /**
+     * @return - the longest time from a key press until its token was placed or removed (in nanoseconds). Only up to
+     *           date on the player thread, or once it terminated.
+     */
+    public long maxInputLatencyNanos() {
+        return maxInputLatencyNanos;
+    }
     
 
 
@@ -196,7 +272,7 @@ public class Player implements Runnable {
                             else{
                                 int keyPressed = (int) (Math.random() * (env.config.tableSize));
                                 try{
-                                    keyPresses.put(keyPressed);
+                                    keyPresses.put(keyPressed, table.slotEpoch(keyPressed));
                                 }catch(InterruptedException ignored){}
                             }
                         }
@@ -204,8 +280,19 @@ public class Player implements Runnable {
                 }
                 else{
                     int keyPressed = (int) (Math.random() * (env.config.tableSize));
+                    int epoch = table.slotEpoch(keyPressed);
                     try{
-                        keyPresses.put(keyPressed);
+                        long frozen = frozenUntil - System.currentTimeMillis();
+                        if (frozen > 0)
+                            Thread.sleep(frozen); // (the presses would not be admitted anyway)
+                        else if (!table.isAvailable.get()){
+                            synchronized (table.tableLock){
+                                while (!table.isAvailable.get() & !terminate)
+                                    table.tableLock.wait();
+                            }
+                        }
+                        else if (admit(keyPressed))
+                            keyPresses.put(keyPressed, epoch);
                     }catch(InterruptedException ex){
                         if (terminate)
                             break;
@@ -235,11 +322,42 @@ public class Player implements Runnable {
      */
     public void keyPressed(int slot) {
         // TODO implement
-        if (freezeTimer <= 0 & !table.isSlotNull(slot)){
-            if (tokens.size() < env.config.featureSize | (tokens.size() == env.config.featureSize & tokens.contains(slot))){
-                keyPresses.offer(slot);
-            }
+        if (gameLoop != null){
+            gameLoop.keyPressed(id, slot);
+            return;
         }
+        int epoch = table.slotEpoch(slot);
+        if (admit(slot))
+            keyPresses.offer(slot, epoch);
+    }
+
+    /**
+     * @return - true iff the player plays from a network client (so its keyboard keys are ignored).
+     */
+    public boolean isRemote() {
+        return remote;
+    }
+
+    /**
+     * Sets whether the player plays from a network client. Key presses must come from one thread at a time, so while
+     * a client plays, the keyboard does not.
+     */
+    public void setRemote(boolean remote) {
+        this.remote = remote;
+    }
+
+    /**
+     * Admission control for key presses: a press is only queued if it can be honoured, i.e. the player is not frozen,
+     * the slot has a card that is not being replaced, and the press would not place more than featureSize tokens.
+     * Presses whose card is replaced after they are queued are dropped when they are taken (see getNextAction).
+     *
+     * @param slot - the slot of the key pressed.
+     * @return     - true iff the press should be queued.
+     */
+    private boolean admit(int slot) {
+        if (System.currentTimeMillis() < frozenUntil || table.isSlotNull(slot) || table.isSlotPending(slot))
+            return false;
+        return countTokens() < env.config.featureSize || hasToken(slot);
     }
 
     /**
@@ -253,8 +371,10 @@ public class Player implements Runnable {
         synchronized (waitingToCheckLock){
             score++;
             freezeTimer = env.config.pointFreezeMillis;
+            frozenUntil = System.currentTimeMillis() + freezeTimer;
             env.ui.setScore(id, score);
             env.ui.setFreeze(id, freezeTimer);
+            env.events.publish(GameEvent.Type.POINT, id, -1, -1, score);
             clearKeyPresses();
             shouldWait = false;
             setIsReady = false;
@@ -272,7 +392,9 @@ public class Player implements Runnable {
         // TODO implement
         synchronized (waitingToCheckLock){
             freezeTimer = env.config.penaltyFreezeMillis;
+            frozenUntil = System.currentTimeMillis() + freezeTimer;
             env.ui.setFreeze(id, freezeTimer);
+            env.events.publish(GameEvent.Type.PENALTY, id, -1, -1, 0);
             clearKeyPresses();
             shouldWait = false;
             setIsReady = false;
@@ -280,6 +402,17 @@ public class Player implements Runnable {
         }
     }
 
+    /**
+     * Lets the player continue without a verdict, when a slot of its set was taken by a set that was checked first.
+     */
+    public void cancelClaim() {
+        synchronized (waitingToCheckLock){
+            shouldWait = false;
+            setIsReady = false;
+            this.waitingToCheckLock.notifyAll();
+        }
+    }
+
     public int score() {
         return score;
     }
@@ -288,13 +421,56 @@ public class Player implements Runnable {
         return id;
     }
 
-    public LinkedList<Integer> getTokens() {
-        return tokens;
+    /**
+     * @return - a copy of the player's tokens bitmask.
+     */
+    public long[] getTokens() {
+        long[] copy = new long[tokens.length()];
+        for (int i = 0; i < copy.length; i++)
+            copy[i] = tokens.get(i);
+        return copy;
+    }
+
+    public boolean hasToken(int slot) {
+        return (tokens.get(slot >>> 6) & 1L << slot) != 0;
+    }
+
+    public int countTokens() {
+        int count = 0;
+        for (int i = 0; i < tokens.length(); i++)
+            count += Long.bitCount(tokens.get(i));
+        return count;
+    }
+
+    /**
+     * Sets or clears the bit of a slot in the tokens bitmask.
+     * @return - true iff the bit was changed.
+     */
+    private boolean setToken(int slot, boolean token) {
+        long bit = 1L << slot;
+        long previous = token ? tokens.getAndAccumulate(slot >>> 6, bit, (word, b) -> word | b)
+                : tokens.getAndAccumulate(slot >>> 6, bit, (word, b) -> word & ~b);
+        return ((previous & bit) != 0) != token;
+    }
+
+    /**
+     * Restores the state of the player from a checkpoint (before the player thread starts).
+     */
+    void resume(int score, long[] tokens, long freezeMillis) {
+        this.score = score;
+        env.ui.setScore(id, score);
+        for (int slot = 0; slot < env.config.tableSize; slot++)
+            if ((tokens[slot >>> 6] & 1L << slot) != 0 && !table.isSlotNull(slot) && setToken(slot, true))
+                table.placeToken(id, slot);
+        freezeTimer = freezeMillis;
+        frozenUntil = System.currentTimeMillis() + freezeMillis;
+        if (freezeMillis > 0) env.ui.setFreeze(id, freezeMillis);
+        resumedClaim = countTokens() == env.config.featureSize;
     }
 
     public void removeToken(Integer slot){
         synchronized (this.waitingToCheckLock){
-            if (tokens.remove(slot)){
+            if (setToken(slot, false)){
                 table.removeToken(this.id, slot);
                 shouldWait = false;
                 setIsReady = false;
@@ -305,7 +481,8 @@ public class Player implements Runnable {
 
     public void removeAllTokens(){
         synchronized (this.waitingToCheckLock){
-            tokens.clear();
+            for (int i = 0; i < tokens.length(); i++)
+                tokens.set(i, 0);
             shouldWait = false;
             setIsReady = false;
             this.waitingToCheckLock.notifyAll();
@@ -313,10 +490,14 @@ public class Player implements Runnable {
     }
 
     public void placeToken(Integer slot){
-        if (!table.isSlotNull(slot)){
-            if (tokens.add(slot)){
-                table.placeToken(this.id, slot);
-            }
+        if (table.isSlotNull(slot) || table.isSlotPending(slot) || !setToken(slot, true))
+            return;
+        table.placeToken(this.id, slot);
+        // the dealer may have started taking the card meanwhile: it reserves the slot (or makes the table unavailable)
+        // before it removes the tokens, so either it removed this token or it is seen here
+        if (table.isSlotPending(slot) || table.isSlotNull(slot) || !table.isAvailable.get()){
+            setToken(slot, false);
+            table.removeToken(this.id, slot);
         }
     }
 
@@ -326,35 +507,57 @@ public class Player implements Runnable {
 
     public int getNextAction(){
         try {
-            Integer slot = keyPresses.take();
-            return slot;
+            while (true){
+                int slot = keyPresses.take();
+                // a press made against a card that was replaced since is stale
+                if (keyPresses.lastPressEpoch() == table.slotEpoch(slot))
+                    return slot;
+            }
         }catch(InterruptedException ex){return -1;}
     }
 
 
+    /**
+     * Makes the player's tokens its possible set, if it has a token on featureSize cards.
+     */
+    private void claimIfComplete(){
+        long[] claimed = getTokens();
+        int claimedCount = 0;
+        for (long word : claimed)
+            claimedCount += Long.bitCount(word);
+        if (claimedCount == env.config.featureSize){
+            possibleSet.addFirst(id);
+            for (int i = 0; i < claimed.length * 64; i++)
+                if ((claimed[i >>> 6] & 1L << i) != 0)
+                    possibleSet.addLast(i);
+            claimTime = System.nanoTime();
+            env.events.publish(GameEvent.Type.SET_CLAIMED, id, -1, -1, 0);
+            setIsReady = true;
+        }
+    }
+
     public void actionExecuter(){
         //execute action
         possibleSet = new LinkedList<Integer>();
-        if (table.isAvailable.get()) { 
+        if (resumedClaim){
+            resumedClaim = false;
+            claimIfComplete();
+        }
+        else if (table.isAvailable.get()) { 
             setIsReady = false;
             Integer slot = getNextAction();
             if (!terminate & slot != -1){
-                try{
-                    tokensSem.acquire();
-                }catch(InterruptedException ignored){}
                 //case 1 - remove token
-                if (tokens.contains(slot))
+                if (hasToken(slot))
                     removeToken(slot);
                 //case 2 - maybe place token
-                else if (tokens.size() != env.config.featureSize){
+                else if (countTokens() != env.config.featureSize){
                     placeToken(slot);
-                    if (tokens.size() == env.config.featureSize){
-                        possibleSet.addFirst(id);
-                        possibleSet.addAll(tokens);
-                        setIsReady = true;
-                    }
+                    claimIfComplete();
                 }
-                tokensSem.release();
+                long latency = System.nanoTime() - keyPresses.lastPressTime();
+                inputLatencies[63 - Long.numberOfLeadingZeros(Math.max(1, latency))]++;
+                maxInputLatencyNanos = Math.max(maxInputLatencyNanos, latency);
             }        
         }
         //check if set should be added to possible sets
@@ -364,7 +567,7 @@ public class Player implements Runnable {
             }catch(InterruptedException ignored){}
             boolean semReleased = false;
             synchronized (waitingToCheckLock) {
-                if (tokens.size() == env.config.featureSize & setIsReady & !shouldWait & !terminate){
+                if (countTokens() == env.config.featureSize & setIsReady & !shouldWait & !terminate){
                     table.addPossibleSet(possibleSet);
                     shouldWait = true;
                 }
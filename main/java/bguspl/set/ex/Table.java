@@ -1,15 +1,17 @@
 package bguspl.set.ex;
 
 import bguspl.set.Env;
+import bguspl.set.GameEvent;
 
 import java.util.Arrays;
-import java.util.List;
 import java.util.Objects;
-import java.util.stream.Collectors;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.LinkedBlockingQueue;
 
 
@@ -32,9 +34,14 @@ public class Table {
     protected final Integer[] slotToCard; // card per slot (if any)
 
     /**
-     * Mapping between a card and the slot it is in (null if none).
+     * Mapping between a card and the slot it is in (NO_SLOT if none).
      */
-    protected final Integer[] cardToSlot; // slot per card (if any)
+    protected final int[] cardToSlot; // slot per card (if any)
+
+    /**
+     * The cardToSlot value of a card that is not on the table.
+     */
+    public static final int NO_SLOT = -1;
 
     /**
      * players possible sets that needs to be checked
@@ -50,18 +57,66 @@ public class Table {
 
     protected Object tableLock = new Object();
 
+    /**
+     * Slots whose cards are about to be replaced (claims on them are not checked anymore).
+     */
+    protected final boolean[] pendingSlots;
+
+    /**
+     * The number of pending slots.
+     */
+    private int pendingCount = 0;
+
+    protected final Object pendingLock = new Object();
+
+    /**
+     * The number of times slots were reserved (guarded by pendingLock), so a reader can tell whether any were meanwhile.
+     */
+    private long reservations = 0;
+
+    /**
+     * The players that have a token on each slot: bit (player % 64) of word (slot * playerWords + player / 64).
+     */
+    protected final AtomicLongArray slotTokens;
+    private final int playerWords;
+
+    /**
+     * The number of times the card in each slot was placed or removed, so key presses made against an older card can
+     * be told apart.
+     */
+    private final AtomicIntegerArray slotEpochs;
+
     /**
      * Constructor for testing.
      *
      * @param env        - the game environment objects.
      * @param slotToCard - mapping between a slot and the card placed in it (null if none).
-     * @param cardToSlot - mapping between a card and the slot it is in (null if none).
+     * @param cardToSlot - mapping between a card and the slot it is in (NO_SLOT if none).
      */
-    public Table(Env env, Integer[] slotToCard, Integer[] cardToSlot) {
+    public Table(Env env, Integer[] slotToCard, int[] cardToSlot) {
 
         this.env = env;
         this.slotToCard = slotToCard;
         this.cardToSlot = cardToSlot;
+        this.pendingSlots = new boolean[slotToCard.length];
+        this.playerWords = (env.config.players + 63) / 64;
+        this.slotTokens = new AtomicLongArray(slotToCard.length * playerWords);
+        this.slotEpochs = new AtomicIntegerArray(slotToCard.length);
+    }
+
+    /**
+     * Constructor for testing, with a boxed card to slot mapping (copied into the primitive one the table keeps, so
+     * later changes to either array are not seen by the other).
+     *
+     * @param env        - the game environment objects.
+     * @param slotToCard - mapping between a slot and the card placed in it (null if none).
+     * @param cardToSlot - mapping between a card and the slot it is in (null if none).
+     */
+    public Table(Env env, Integer[] slotToCard, Integer[] cardToSlot) {
+
+        this(env, slotToCard, new int[cardToSlot.length]);
+        for (int card = 0; card < cardToSlot.length; card++)
+            this.cardToSlot[card] = cardToSlot[card] == null ? NO_SLOT : cardToSlot[card];
     }
 
     /**
@@ -71,26 +126,68 @@ public class Table {
      */
     public Table(Env env) {
 
-        this(env, new Integer[env.config.tableSize], new Integer[env.config.deckSize]);
+        this(env, new Integer[env.config.tableSize], new int[env.config.deckSize]);
+        Arrays.fill(cardToSlot, NO_SLOT);
     }
 
     /**
      * This method prints all possible legal sets of cards that are currently on the table.
      */
     public void hints() {
-        List<Integer> deck = Arrays.stream(slotToCard).filter(Objects::nonNull).collect(Collectors.toList());
-        env.util.findSets(deck, Integer.MAX_VALUE).forEach(set -> {
-            StringBuilder sb = new StringBuilder().append("Hint: Set found: ");
-            List<Integer> slots = Arrays.stream(set).mapToObj(card -> cardToSlot[card]).sorted().collect(Collectors.toList());
-            int[][] features = env.util.cardsToFeatures(set);
-            System.out.println(sb.append("slots: ").append(slots).append(" features: ").append(Arrays.deepToString(features)));
+        StringBuilder sb = new StringBuilder();
+        int[] slots = new int[env.config.featureSize];
+        env.util.forEachSet(cardsOnTable(), set -> {
+            for (int i = 0; i < set.length; i++)
+                slots[i] = cardToSlot[set[i]];
+            Arrays.sort(slots);
+            sb.setLength(0);
+            sb.append("Hint: Set found: slots: [");
+            for (int i = 0; i < slots.length; i++)
+                sb.append(i == 0 ? "" : ", ").append(slots[i]);
+            sb.append("] features: [");
+            for (int i = 0; i < set.length; i++)
+                appendFeatures(sb.append(i == 0 ? "" : ", "), set[i]);
+            System.out.println(sb.append(']'));
+            return true;
         });
     }
 
+    private void appendFeatures(StringBuilder sb, int card) {
+        int divisor = 1;
+        for (int i = 1; i < env.config.featureCount; i++)
+            divisor *= env.config.featureSize;
+        sb.append('[');
+        for (; divisor > 0; divisor /= env.config.featureSize)
+            sb.append(card / divisor % env.config.featureSize).append(divisor > 1 ? ", " : "");
+        sb.append(']');
+    }
+
+    /**
+     * @return - the ids of the cards currently on the table.
+     */
+    public int[] cardsOnTable() {
+        return Arrays.stream(slotToCard).filter(Objects::nonNull).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @param except - pending slots whose cards are counted anyway (the slots the caller reserved itself).
+     * @return       - the ids of the cards on the table, other than the ones in pending slots (about to be removed).
+     */
+    public int[] cardsNotPending(List<Integer> except) {
+        synchronized (pendingLock){
+            int[] cards = new int[slotToCard.length];
+            int count = 0;
+            for (int slot = 0; slot < slotToCard.length; slot++){
+                Integer card = slotToCard[slot];
+                if (card != null && (!pendingSlots[slot] || except.contains(slot)))
+                    cards[count++] = card;
+            }
+            return Arrays.copyOf(cards, count);
+        }
+    }
+
     public boolean setCanBeFound() {
-        List<Integer> cardsOnTable = Arrays.stream(slotToCard).filter(Objects::nonNull).collect(Collectors.toList());
-        List<int[]> foundSet = env.util.findSets(cardsOnTable, 1);
-        return !foundSet.isEmpty();
+        return !env.util.forEachSet(cardsOnTable(), set -> false);
     }
 
     /**
@@ -119,10 +216,35 @@ public class Table {
         } catch (InterruptedException ignored) {}
 
         // TODO implement
+        putCard(card, slot);
+        return true;
+    }
+
+    /**
+     * Places a card on the table right away (without the table delay).
+     */
+    void putCard(int card, int slot) {
         cardToSlot[card] = slot;
         slotToCard[slot] = card;
+        slotEpochs.incrementAndGet(slot);
         env.ui.placeCard(card, slot);
-        return true;
+        env.events.publish(GameEvent.Type.CARD_PLACED, -1, slot, card, 0);
+    }
+
+    /**
+     * Removes a card from the table right away (without the table delay, and without checking the possible sets).
+     * @return - the card removed (null if the slot was empty).
+     */
+    Integer takeCard(int slot) {
+        Integer removedCard = slotToCard[slot];
+        if (removedCard != null){
+            cardToSlot[removedCard] = NO_SLOT;
+            slotToCard[slot] = null;
+            slotEpochs.incrementAndGet(slot);
+            env.ui.removeCard(slot);
+            env.events.publish(GameEvent.Type.CARD_REMOVED, -1, slot, removedCard, 0);
+        }
+        return removedCard;
     }
 
 
@@ -136,32 +258,31 @@ public class Table {
         } catch (InterruptedException ignored) {}
 
         // TODO implement
-        Integer removedCard = slotToCard[slot];
+        Integer removedCard = takeCard(slot);
         if (removedCard != null){
-            cardToSlot[removedCard] = null;
-            slotToCard[slot] = null;
-            env.ui.removeCard(slot);
-            Iterator<LinkedList<Integer>> iter = possibleSets.iterator();
-            LinkedList<Integer> possibleSet;
-            while (iter.hasNext()){
-                possibleSet = iter.next();
-                if (possibleSet.getLast() != -1){
-                    Integer possibleSetPlayerId = possibleSet.getFirst();
-                    possibleSet.removeFirst();
-                    if (possibleSet.contains(slot)){
-                        possibleSet.addLast(-1);
-                        possibleSet.addFirst(possibleSetPlayerId);
-                        Player currPlayer = players[possibleSetPlayerId];  
-                        synchronized (currPlayer.waitingToCheckLock){                            
-                                currPlayer.shouldWait = false;
-                                currPlayer.setIsReady = false;
-                                currPlayer.waitingToCheckLock.notifyAll();
+            synchronized (possibleSets){
+                Iterator<LinkedList<Integer>> iter = possibleSets.iterator();
+                LinkedList<Integer> possibleSet;
+                while (iter.hasNext()){
+                    possibleSet = iter.next();
+                    if (possibleSet.getLast() != -1){
+                        Integer possibleSetPlayerId = possibleSet.getFirst();
+                        possibleSet.removeFirst();
+                        if (possibleSet.contains(slot)){
+                            possibleSet.addLast(-1);
+                            possibleSet.addFirst(possibleSetPlayerId);
+                            Player currPlayer = players[possibleSetPlayerId];  
+                            synchronized (currPlayer.waitingToCheckLock){                            
+                                    currPlayer.shouldWait = false;
+                                    currPlayer.setIsReady = false;
+                                    currPlayer.waitingToCheckLock.notifyAll();
+                            }
                         }
+                        else
+                            possibleSet.addFirst(possibleSetPlayerId);
                     }
-                    else
-                        possibleSet.addFirst(possibleSetPlayerId);
                 }
-            }    
+            }
         }
         return removedCard;
     }
@@ -173,7 +294,9 @@ public class Table {
      */
     public void placeToken(int player, int slot) {
         // TODO implement
+        slotTokens.getAndAccumulate(slot * playerWords + (player >>> 6), 1L << player, (word, bit) -> word | bit);
         env.ui.placeToken(player, slot);
+        env.events.publish(GameEvent.Type.TOKEN_PLACED, player, slot, -1, 0);
     }
 
     /**
@@ -184,24 +307,53 @@ public class Table {
      */
     public boolean removeToken(int player, int slot) {
         // TODO implement
+        slotTokens.getAndAccumulate(slot * playerWords + (player >>> 6), 1L << player, (word, bit) -> word & ~bit);
         env.ui.removeToken(player, slot);
+        env.events.publish(GameEvent.Type.TOKEN_REMOVED, player, slot, -1, 0);
         return true;
     }
 
     public void removeAllTokens() {
         // TODO implement
+        for (int i = 0; i < slotTokens.length(); i++)
+            slotTokens.set(i, 0);
         env.ui.removeTokens();
+        env.events.publish(GameEvent.Type.TOKENS_REMOVED, -1, -1, -1, 0);
+    }
+
+    /**
+     * @param slot - a slot.
+     * @return     - the ids of the players that have a token on the slot, in increasing order.
+     */
+    public int[] playersWithTokens(int slot) {
+        int count = 0;
+        long[] words = new long[playerWords];
+        for (int i = 0; i < playerWords; i++){
+            words[i] = slotTokens.get(slot * playerWords + i);
+            count += Long.bitCount(words[i]);
+        }
+        int[] players = new int[count];
+        for (int i = 0, n = 0; i < playerWords; i++)
+            for (long word = words[i]; word != 0; word &= word - 1)
+                players[n++] = i * 64 + Long.numberOfTrailingZeros(word);
+        return players;
     }
 
-    public LinkedList<Integer> getPossibleSet(){
-        while (!possibleSets.isEmpty()){
-            try{
-                LinkedList<Integer> currSetToCheck = possibleSets.take();
+    /**
+     * Takes all the possible sets that are waiting to be checked (skipping the ones that were invalidated).
+     */
+    public LinkedList<LinkedList<Integer>> getPossibleSets(){
+        LinkedList<LinkedList<Integer>> setsToCheck = new LinkedList<LinkedList<Integer>>();
+        // (claims are invalidated in place by removeCard, which may run on the table thread)
+        synchronized (possibleSets){
+            LinkedList<Integer> currSetToCheck = possibleSets.poll();
+            while (currSetToCheck != null){
                 if (currSetToCheck.getLast() != -1)
-                    return currSetToCheck;
-            }catch (InterruptedException ignored){}
+                    setsToCheck.add(currSetToCheck);
+                currSetToCheck = possibleSets.poll();
+            }
         }
-        return null;
+        return setsToCheck;
     }
 
     public boolean isSet(LinkedList<Integer> slots) {
@@ -213,6 +365,21 @@ public class Table {
         return env.util.testSet(possibleSet);
     }
 
+    /**
+     * @param slots  - some slots.
+     * @param cards  - card ids.
+     * @param offset - the index in cards of the card expected in the first slot.
+     * @return       - true iff the slots hold the given cards.
+     */
+    public boolean holdsCards(List<Integer> slots, int[] cards, int offset){
+        for (int i = 0; i < slots.size(); i++){
+            Integer card = slotToCard[slots.get(i)];
+            if (card == null || card != cards[offset + i])
+                return false;
+        }
+        return true;
+    }
+
     public void addPossibleSet(LinkedList<Integer> possibleSet){
         try{
             possibleSets.put(possibleSet);
@@ -222,4 +389,81 @@ public class Table {
     public boolean isSlotNull(int slot){
         return slotToCard[slot] == null;
     }
+
+    /**
+     * @param slot - a slot.
+     * @return     - the current epoch of the slot (changes whenever a card is placed in it or removed from it).
+     */
+    public int slotEpoch(int slot){
+        return slotEpochs.get(slot);
+    }
+
+    public boolean isSlotPending(int slot){
+        synchronized (pendingLock){
+            return pendingSlots[slot];
+        }
+    }
+
+    /**
+     * Marks slots as pending, unless one of them is already pending or has no card.
+     * @param slots - the slots to mark.
+     * @return      - true iff the slots were marked.
+     */
+    public boolean reserveSlots(List<Integer> slots){
+        synchronized (pendingLock){
+            for (int slot : slots)
+                if (pendingSlots[slot] || slotToCard[slot] == null)
+                    return false;
+            for (int slot : slots)
+                pendingSlots[slot] = true;
+            pendingCount += slots.size();
+            reservations++;
+            return true;
+        }
+    }
+
+    /**
+     * Unmarks pending slots (after their cards were replaced).
+     * @param slots - the slots to unmark.
+     */
+    public void releaseSlots(List<Integer> slots){
+        synchronized (pendingLock){
+            for (int slot : slots)
+                if (pendingSlots[slot]){
+                    pendingSlots[slot] = false;
+                    pendingCount--;
+                }
+            pendingLock.notifyAll();
+        }
+    }
+
+    /**
+     * @param except - pending slots that are not counted (the slots the caller reserved itself).
+     * @return       - the number of reservations made so far, or -1 if a slot other than the given ones is pending.
+     */
+    public long reservationsIfNoOtherPending(List<Integer> except){
+        synchronized (pendingLock){
+            int pendingExcepted = 0;
+            for (int slot : except)
+                if (pendingSlots[slot])
+                    pendingExcepted++;
+            return pendingCount > pendingExcepted ? -1 : reservations;
+        }
+    }
+
+    public boolean hasPendingSlots(){
+        synchronized (pendingLock){
+            return pendingCount > 0;
+        }
+    }
+
+    /**
+     * Waits until no slot is pending.
+     */
+    public void awaitNoPendingSlots() throws InterruptedException{
+        synchronized (pendingLock){
+            while (pendingCount > 0)
+                pendingLock.wait();
+        }
+    }
 }
@@ -0,0 +1,206 @@
+package bguspl.set.ex;
+
+import bguspl.set.Util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Threads that check the cards of a batch of possible sets in parallel with the thread that hands them the batch (the
+ * committer). Every set belongs to a shard by a hash of its slots, so the same slots are always checked by the same
+ * thread; the committer checks shard 0 and each verifier thread one of the others. Only the verdicts are computed in
+ * parallel: the committer alone changes the table, in the order of the batch.
+ *
+ * A batch is handed over by publishing it and advancing a generation number, so no task or future is allocated. The
+ * verifiers spin on the generation for a while after every batch, so the next batch of a busy game is picked up without
+ * waking them, and park when the game is quiet. The committer waits for them the same way.
+ */
+class Verifiers {
+
+    /**
+     * How many times a waiting thread checks again before it parks (none on a single processor, where spinning only
+     * delays the thread it waits for).
+     */
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 12 : 0;
+
+    private final Util util;
+    private final int setSize;
+    private final int shards;
+    private final Thread[] threads;
+
+    /**
+     * The published batch: the cards of the sets, the shard of each set, and their number (written by the committer
+     * before advancing generation).
+     */
+    private int[] cards;
+    private int[] setShards;
+    private int count;
+    private volatile long generation = 0;
+
+    /**
+     * The legal sets found by each shard (a bitmask over the whole batch, written by the shard's thread only).
+     */
+    private final long[][] legal;
+
+    /**
+     * The cards of the sets of each shard (a buffer owned by the shard's thread).
+     */
+    private final int[][] shardCards;
+
+    /**
+     * The number of verifiers that did not finish the current batch yet.
+     */
+    private final AtomicInteger remaining = new AtomicInteger();
+
+    /**
+     * Whether the verifier of each shard is parked waiting for a batch, and the committer if it is parked waiting for
+     * the verifiers.
+     */
+    private final AtomicIntegerArray parkedVerifiers;
+    private volatile Thread parkedCommitter;
+
+    private volatile boolean terminate = false;
+
+    /**
+     * Starts the verifier threads (daemons, named by prefix and shard).
+     *
+     * @param threads - the number of verifier threads (besides the committer).
+     */
+    Verifiers(Util util, int setSize, int threads, String prefix) {
+        this.util = util;
+        this.setSize = setSize;
+        shards = threads + 1;
+        legal = new long[shards][];
+        shardCards = new int[shards][setSize];
+        parkedVerifiers = new AtomicIntegerArray(shards);
+        this.threads = new Thread[shards];
+        for (int shard = 1; shard < shards; shard++) {
+            int id = shard;
+            this.threads[shard] = new Thread(() -> verify(id), prefix + (shard - 1));
+            this.threads[shard].setDaemon(true);
+            this.threads[shard].start();
+        }
+    }
+
+    /**
+     * @return - the shard of a possible set (independent of the order of its slots).
+     */
+    int shard(Iterable<Integer> slots) {
+        int hash = 0;
+        for (int slot : slots)
+            hash += slot * 0x9E3779B9;
+        return Math.floorMod(hash, shards);
+    }
+
+    /**
+     * Checks a batch of possible sets (committer only).
+     *
+     * @param cards     - the cards of the sets, setSize cards each.
+     * @param setShards - the shard of each set (see shard).
+     * @param count     - the number of sets.
+     * @return          - a bitmask of the legal sets, like Util.testSets.
+     */
+    long[] testSets(int[] cards, int[] setShards, int count) {
+        this.cards = cards;
+        this.setShards = setShards;
+        this.count = count;
+        remaining.set(shards - 1);
+        generation++;
+        for (int shard = 1; shard < shards; shard++)
+            if (parkedVerifiers.get(shard) != 0) LockSupport.unpark(threads[shard]);
+
+        long[] result = check(0);
+        awaitVerifiers();
+        for (int shard = 1; shard < shards; shard++)
+            for (int i = 0; i < result.length; i++)
+                result[i] |= legal[shard][i];
+        this.cards = null;
+        this.setShards = null;
+        return result;
+    }
+
+    /**
+     * Waits until every verifier checked its shard of the current batch. An interrupt does not stop the wait, and is
+     * kept for the caller.
+     */
+    private void awaitVerifiers() {
+        boolean interrupted = false;
+        for (int spins = 0; remaining.get() > 0; spins++) {
+            if (spins < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+            parkedCommitter = Thread.currentThread();
+            if (remaining.get() > 0) LockSupport.park(this);
+            parkedCommitter = null;
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * The main loop of a verifier thread: waits for a batch and checks its shard of it.
+     */
+    private void verify(int shard) {
+        long checked = 0;
+        int spins = 0;
+        while (!terminate) {
+            if (generation == checked) {
+                if (spins++ < SPINS)
+                    Thread.onSpinWait();
+                else {
+                    parkedVerifiers.set(shard, 1);
+                    if (generation == checked && !terminate) LockSupport.park(this);
+                    parkedVerifiers.set(shard, 0);
+                }
+                continue;
+            }
+            spins = 0;
+            checked = generation;
+            legal[shard] = check(shard);
+            if (remaining.decrementAndGet() == 0) {
+                Thread committer = parkedCommitter;
+                if (committer != null) LockSupport.unpark(committer);
+            }
+        }
+    }
+
+    /**
+     * @return - a bitmask (over the whole batch) of the legal sets of a shard.
+     */
+    private long[] check(int shard) {
+        int[] batchCards = cards;
+        int[] batchShards = setShards;
+        int batchCount = count;
+        int size = 0;
+        for (int i = 0; i < batchCount; i++)
+            if (batchShards[i] == shard) size++;
+        int[] own = shardCards[shard];
+        if (own.length < size * setSize) {
+            own = new int[Math.max(own.length * 2, size * setSize)];
+            shardCards[shard] = own;
+        }
+        for (int i = 0, j = 0; i < batchCount; i++)
+            if (batchShards[i] == shard)
+                System.arraycopy(batchCards, i * setSize, own, setSize * j++, setSize);
+
+        long[] shardLegal = util.testSets(own, size);
+        long[] result = new long[(batchCount + 63) / 64];
+        for (int i = 0, j = 0; i < batchCount; i++)
+            if (batchShards[i] == shard) {
+                if ((shardLegal[j >>> 6] & 1L << j) != 0) result[i >>> 6] |= 1L << i;
+                j++;
+            }
+        return result;
+    }
+
+    /**
+     * Stops the verifier threads.
+     */
+    void terminate() {
+        terminate = true;
+        for (int shard = 1; shard < shards; shard++)
+            LockSupport.unpark(threads[shard]);
+    }
+}